@@ -0,0 +1,120 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector.jmh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.openstat.charsetdetector.CharsetDetector;
+import com.openstat.charsetdetector.CyrillicCharset;
+import com.openstat.charsetdetector.CyrillicCharsetDetector;
+import com.openstat.charsetdetector.UTF8CharsetDetector;
+
+/**
+ * Detection of the benchmarks texts cut to the given length and encoded with the given charset.
+ * Results are returned from the benchmark methods, so JMH consumes them and the calls
+ * are not eliminated as dead code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DetectionBenchmark {
+
+    @Param({ "3", "16", "256", "4096", "65536", "1048576" })
+    private int length;
+
+    @Param({ "UTF-8", "windows-1251", "KOI8-R", "IBM866" })
+    private String charset;
+
+    private byte[] input;
+    private CharsetDetector detector;
+    private CyrillicCharsetDetector cyrDetector;
+
+    @Setup
+    public void setUp() throws IOException {
+        input = createInput(Charset.forName(charset), length);
+        detector = new CharsetDetector();
+        cyrDetector = CharsetDetector.getCyrDetector();
+    }
+
+    @Benchmark
+    public Charset detectNioCharset() {
+        return detector.detectNioCharset(input);
+    }
+
+    @Benchmark
+    public boolean isUTF8() {
+        return UTF8CharsetDetector.isUTF8(input);
+    }
+
+    @Benchmark
+    public CyrillicCharset detectCyrillicCharset() {
+        return cyrDetector.detectCyrillicCharset(input);
+    }
+
+    /**
+     * Repeats the benchmarks texts up to the given number of bytes.
+     * The input is cut at the beginning of a char, so UTF-8 input stays valid.
+     */
+    static byte[] createInput(Charset cs, int length) throws IOException {
+        String text = readText("pushkin.txt") + readText("kocubinski.txt");
+        StringBuilder repeated = new StringBuilder(text);
+        while (repeated.toString().getBytes(cs).length < length) {
+            repeated.append(text);
+        }
+        byte[] bytes = repeated.toString().getBytes(cs);
+        int end = length;
+        while (end > 0 && end < bytes.length && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        byte[] input = new byte[end];
+        System.arraycopy(bytes, 0, input, 0, end);
+        return input;
+    }
+
+    private static String readText(String textFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                DetectionBenchmark.class.getResourceAsStream("/benchmarks/" + textFile), "UTF-8"));
+        try {
+            StringBuilder text = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.openstat.charsetdetector.DetectionModel;
+
+/**
+ * Loading of the default model from the class path, from a buffer and from a memory mapped file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ModelLoadingBenchmark {
+
+    private byte[] modelBytes;
+    private File modelFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DetectionModel.getDefault().write(bytes);
+        modelBytes = bytes.toByteArray();
+        modelFile = File.createTempFile("model", ".data");
+        FileOutputStream os = new FileOutputStream(modelFile);
+        try {
+            os.write(modelBytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        modelFile.delete();
+    }
+
+    @Benchmark
+    public DetectionModel load() {
+        return DetectionModel.load();
+    }
+
+    @Benchmark
+    public DetectionModel readBuffer() throws IOException {
+        return DetectionModel.read(ByteBuffer.wrap(modelBytes));
+    }
+
+    @Benchmark
+    public DetectionModel map() throws IOException {
+        return DetectionModel.map(modelFile);
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import static com.openstat.charsetdetector.util.Util.checkRange;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the charsets of recent inputs, so repeated short inputs
+ * (search queries, User-Agent strings and the like) are not scanned again.
+ *
+ * Inputs are hashed by a fast non-cryptographic 64-bit hash. The cache is a fixed
+ * set-associative table of #WAYS entries per set. An entry is a single long: the high bits
+ * of the hash that are not used to choose the set, the input length, the charset and
+ * a reference bit. Next to it the first and the last 8 bytes of the input are kept as a fingerprint,
+ * so a lookup compares a few longs without storing or touching the whole input.
+ * Inputs of at most 16 bytes are covered by their fingerprints and are never confused.
+ * Longer inputs are confused only if they have the same length, first and last 8 bytes and set,
+ * and their hashes agree in 43 bits, so the cache is exact for them with probability about 1 - 2^-43.
+ * When a set is full, an entry is evicted by the CLOCK (second chance) policy:
+ * referenced entries lose their reference bit and are passed by.
+ *
+ * Lock-free and thread safe: entries are read and replaced atomically,
+ * a replace that loses a race is just skipped. A fingerprint is written before its entry,
+ * so an entry and a fingerprint of different inputs only cause a miss. Inputs longer than the maximal length
+ * bypass the cache, so hashing never costs more than detection.
+ *
+ * If the detector has a #DetectionListener, hits are reported to it by #DetectionListener.cacheHit
+ * and misses are detected and reported as usual, so the listener sees every call.
+ */
+public final class CachingCharsetDetector {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_LENGTH = 1024;
+    /**
+     * Number of entries in a set.
+     */
+    static final int WAYS = 4;
+    /**
+     * Number of bytes at each end of the input kept in the fingerprint.
+     */
+    static final int FINGERPRINT_BYTES = 8;
+    /**
+     * Maximal length of cached inputs, limited by the length bits of an entry.
+     */
+    static final int MAX_LENGTH_LIMIT = 0xFFFF;
+
+    private static final int WAYS_SHIFT = 2;
+    private static final long CHARSET_MASK = 0xF;
+    private static final long REFERENCED = 0x10;
+    private static final int LENGTH_SHIFT = 5;
+    private static final int TAG_SHIFT = 21;
+    private static final long KEY_MASK = ~(CHARSET_MASK | REFERENCED);
+    private static final long EMPTY = 0;
+
+    private static final long M1 = 0x9E3779B97F4A7C15L;
+    private static final long M2 = 0xC2B2AE3D27D4EB4FL;
+
+    /**
+     * Charsets by their codes in entries, 0 is reserved for empty entries.
+     */
+    private static final Charset[] CHARSETS = createCharsets();
+
+    private final CharsetDetector detector;
+    private final DetectionListener listener;
+    private final int maxLength;
+    private final int setMask;
+    private final AtomicLongArray table;
+    /**
+     * The first and the last bytes of the input of entry i at 2 * i and 2 * i + 1.
+     */
+    private final AtomicLongArray fingerprints;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache of #DEFAULT_CAPACITY entries in front of the default detector.
+     */
+    public CachingCharsetDetector() {
+        this(new CharsetDetector(), DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param detector detector of the inputs that are not cached
+     * @param capacity number of cached inputs, rounded up to a power of two; memory use is 24 bytes per entry
+     * @param maxLength maximal length of cached inputs, at most 65535
+     */
+    public CachingCharsetDetector(CharsetDetector detector, int capacity, int maxLength) {
+        if (capacity < 1 || capacity > 1 << 30 || maxLength < 0 || maxLength > MAX_LENGTH_LIMIT) {
+            throw new IllegalArgumentException("Wrong cache parameters: " + capacity + " entries, "
+                    + maxLength + " bytes at most");
+        }
+        int size = Math.max(WAYS, Integer.highestOneBit(capacity - 1) << 1);
+        this.detector = detector;
+        this.listener = detector.getListener();
+        this.maxLength = maxLength;
+        this.setMask = (size >> WAYS_SHIFT) - 1;
+        this.table = new AtomicLongArray(size);
+        this.fingerprints = new AtomicLongArray(2 * size);
+    }
+
+    public Charset detectNioCharset(byte[] b) {
+        return detect(b, 0, b.length);
+    }
+
+    /**
+     * Same as #CharsetDetector.detect(byte[], int, int), but cached.
+     */
+    public Charset detect(byte[] buf, int off, int len) {
+        checkRange(buf, off, len);
+        if (len > maxLength) {
+            return detector.detect(buf, off, len);
+        }
+        long start = listener != null ? System.nanoTime() : 0;
+        long hash = hash(buf, off, len);
+        long first = first(buf, off, len);
+        long last = last(buf, off, len);
+        Charset cached = lookup(hash, len, first, last);
+        return cached != null ? hit(cached, start) : store(hash, len, first, last, detector.detect(buf, off, len));
+    }
+
+    /**
+     * Same as #CharsetDetector.detect(byte[], int, int, DetectionContext), but cached.
+     * The context is not updated on a hit.
+     */
+    public Charset detect(byte[] buf, int off, int len, DetectionContext ctx) {
+        checkRange(buf, off, len);
+        if (len > maxLength) {
+            return detector.detect(buf, off, len, ctx);
+        }
+        long start = listener != null ? System.nanoTime() : 0;
+        long hash = hash(buf, off, len);
+        long first = first(buf, off, len);
+        long last = last(buf, off, len);
+        Charset cached = lookup(hash, len, first, last);
+        return cached != null ? hit(cached, start) : store(hash, len, first, last, detector.detect(buf, off, len, ctx));
+    }
+
+    /**
+     * Same as #CharsetDetector.detect(ByteBuffer), but cached.
+     * An input is the same key whether it comes in an array, a heap buffer or a direct buffer.
+     */
+    public Charset detect(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (len > maxLength) {
+            return detector.detect(buf);
+        }
+        long start = listener != null ? System.nanoTime() : 0;
+        long hash = hash(buf);
+        long first = first(buf);
+        long last = last(buf);
+        Charset cached = lookup(hash, len, first, last);
+        return cached != null ? hit(cached, start) : store(hash, len, first, last, detector.detect(buf));
+    }
+
+    /**
+     * Same as #CharsetDetector.detect(ByteBuffer, DetectionContext), but cached.
+     * The context is not updated on a hit.
+     */
+    public Charset detect(ByteBuffer buf, DetectionContext ctx) {
+        int len = buf.remaining();
+        if (len > maxLength) {
+            return detector.detect(buf, ctx);
+        }
+        long start = listener != null ? System.nanoTime() : 0;
+        long hash = hash(buf);
+        long first = first(buf);
+        long last = last(buf);
+        Charset cached = lookup(hash, len, first, last);
+        return cached != null ? hit(cached, start) : store(hash, len, first, last, detector.detect(buf, ctx));
+    }
+
+    /**
+     * @return number of cached inputs found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of cached inputs not found in the cache, inputs longer than the maximal length excluded
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries replaced by other inputs
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of entries, a power of two
+     */
+    public int getCapacity() {
+        return table.length();
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Empties the cache. Counters are not reset.
+     */
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * @param first the first bytes of the input, see #first
+     * @param last the last bytes of the input, see #last
+     * @return the cached charset or null
+     */
+    Charset lookup(long hash, int len, long first, long last) {
+        long key = key(hash, len);
+        int base = ((int) hash & setMask) << WAYS_SHIFT;
+        for (int i = base; i < base + WAYS; i++) {
+            long entry = table.get(i);
+            if ((entry & KEY_MASK) == key && entry != EMPTY
+                    && fingerprints.get(2 * i) == first && fingerprints.get(2 * i + 1) == last) {
+                if ((entry & REFERENCED) == 0) {
+                    table.compareAndSet(i, entry, entry | REFERENCED);
+                }
+                hits.increment();
+                return CHARSETS[(int) (entry & CHARSET_MASK)];
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Reports the hit to the listener if there is one.
+     *
+     * @return the cached charset
+     */
+    private Charset hit(Charset cached, long start) {
+        if (listener != null) {
+            listener.cacheHit(cached, System.nanoTime() - start);
+        }
+        return cached;
+    }
+
+    /**
+     * Puts the detected charset into an empty entry of the set or evicts an entry by CLOCK.
+     * The hand starts from a way chosen by the hash, so no way is evicted more often than the others.
+     *
+     * @return the charset
+     */
+    Charset store(long hash, int len, long first, long last, Charset charset) {
+        long newEntry = key(hash, len) | code(charset);
+        int base = ((int) hash & setMask) << WAYS_SHIFT;
+        for (int i = base; i < base + WAYS; i++) {
+            if (table.get(i) == EMPTY) {
+                setFingerprint(i, first, last);
+                if (table.compareAndSet(i, EMPTY, newEntry)) {
+                    return charset;
+                }
+            }
+        }
+        int start = (int) (hash >>> TAG_SHIFT);
+        for (int step = 0; step < 2 * WAYS; step++) {
+            int i = base + ((start + step) & (WAYS - 1));
+            long entry = table.get(i);
+            if ((entry & REFERENCED) != 0) {
+                table.compareAndSet(i, entry, entry & ~REFERENCED);
+                continue;
+            }
+            setFingerprint(i, first, last);
+            if (table.compareAndSet(i, entry, newEntry)) {
+                if (entry != EMPTY) {
+                    evictions.increment();
+                }
+                return charset;
+            }
+        }
+        return charset;
+    }
+
+    private void setFingerprint(int i, long first, long last) {
+        fingerprints.set(2 * i, first);
+        fingerprints.set(2 * i + 1, last);
+    }
+
+    private static long key(long hash, int len) {
+        return hash >>> TAG_SHIFT << TAG_SHIFT | (long) len << LENGTH_SHIFT;
+    }
+
+    private static long code(Charset charset) {
+        for (int code = 1; code < CHARSETS.length; code++) {
+            if (CHARSETS[code].equals(charset)) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("Unexpected charset: " + charset);
+    }
+
+    /**
+     * Hashes the bytes 4 at a time and mixes the result by the MurmurHash3 finalizer.
+     * The low bits choose the set and the high bits are the tag.
+     */
+    static long hash(byte[] buf, int off, int len) {
+        long h = len * M1;
+        int end = off + len;
+        int i = off;
+        for (; i <= end - 4; i += 4) {
+            int word = (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | buf[i + 3] << 24;
+            h = Long.rotateLeft((h ^ (word & 0xFFFFFFFFL)) * M1, 29);
+        }
+        for (; i < end; i++) {
+            h = Long.rotateLeft((h ^ (buf[i] & 0xFF)) * M1, 29);
+        }
+        return mix(h);
+    }
+
+    /**
+     * Same as #hash(byte[], int, int) for the remaining bytes of the buffer.
+     */
+    static long hash(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return hash(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        int end = buf.limit();
+        long h = (end - buf.position()) * M1;
+        int i = buf.position();
+        for (; i <= end - 4; i += 4) {
+            int word = (buf.get(i) & 0xFF) | (buf.get(i + 1) & 0xFF) << 8 | (buf.get(i + 2) & 0xFF) << 16
+                    | buf.get(i + 3) << 24;
+            h = Long.rotateLeft((h ^ (word & 0xFFFFFFFFL)) * M1, 29);
+        }
+        for (; i < end; i++) {
+            h = Long.rotateLeft((h ^ (buf.get(i) & 0xFF)) * M1, 29);
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the first #FINGERPRINT_BYTES bytes of the range, fewer if it is shorter
+     */
+    static long first(byte[] buf, int off, int len) {
+        return bytes(buf, off, off + Math.min(len, FINGERPRINT_BYTES));
+    }
+
+    /**
+     * @return the last #FINGERPRINT_BYTES bytes of the range, fewer if it is shorter
+     */
+    static long last(byte[] buf, int off, int len) {
+        return bytes(buf, off + len - Math.min(len, FINGERPRINT_BYTES), off + len);
+    }
+
+    /**
+     * Same as #first(byte[], int, int) for the remaining bytes of the buffer.
+     */
+    static long first(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return first(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        return bytes(buf, buf.position(), buf.position() + Math.min(buf.remaining(), FINGERPRINT_BYTES));
+    }
+
+    /**
+     * Same as #last(byte[], int, int) for the remaining bytes of the buffer.
+     */
+    static long last(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return last(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        return bytes(buf, buf.limit() - Math.min(buf.remaining(), FINGERPRINT_BYTES), buf.limit());
+    }
+
+    private static long bytes(byte[] buf, int from, int to) {
+        long bytes = 0;
+        for (int i = from; i < to; i++) {
+            bytes = bytes << 8 | (buf[i] & 0xFF);
+        }
+        return bytes;
+    }
+
+    private static long bytes(ByteBuffer buf, int from, int to) {
+        long bytes = 0;
+        for (int i = from; i < to; i++) {
+            bytes = bytes << 8 | (buf.get(i) & 0xFF);
+        }
+        return bytes;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= M2;
+        h ^= h >>> 29;
+        h *= M1;
+        return h ^ h >>> 32;
+    }
+
+    private static Charset[] createCharsets() {
+        CyrillicCharset[] cyrillic = CyrillicCharset.values();
+        if (cyrillic.length + 2 > CHARSET_MASK + 1) {
+            throw new IllegalStateException("Too many charsets for a cache entry: " + cyrillic.length);
+        }
+        Charset[] charsets = new Charset[cyrillic.length + 2];
+        charsets[1] = Charset.forName("UTF-8");
+        for (CyrillicCharset cs : cyrillic) {
+            charsets[cs.ordinal() + 2] = cs.getNioCharset();
+        }
+        return charsets;
+    }
+}
@@ -15,60 +15,544 @@
  */
 package com.openstat.charsetdetector;
 
-import java.io.ObjectInputStream;
+import static com.openstat.charsetdetector.util.Util.checkRange;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.BitSet;
 
 /**
  * Detects a cyrillic charset by array of bytes.
- * Supported charsets: utf-8, win-1251, koi8-r, iso-8859-5, ibm855.
+ * Supported charsets: utf-8 and the candidates of the one-byte detector,
+ * win-1251, koi8-r, koi8-u and cp866 by default (see #CyrillicCharsetDetector.getCandidates()).
  * Optimized to detect charsets for short phrases.
- * Non thread safe.
+ * Immutable and thread safe, one instance may be shared by all threads.
  *
  */
 public final class CharsetDetector {
 
     private static final Charset NIO_CS_UTF = Charset.forName("UTF-8");
-    private CyrillicCharsetDetector cyrDetector = getCyrDetector();
+    private static final int BLOCK_SIZE = DetectionContext.BLOCK_SIZE;
+    /**
+     * Number of non-ASCII bytes in valid UTF-8 after which one-byte charsets are not speculatively scanned.
+     */
+    private static final int CONFIDENT_NON_ASCII_BYTES = StreamingCharsetDetector.CONFIDENT_NON_ASCII_BYTES;
+    private final CyrillicCharsetDetector cyrDetector;
+    /**
+     * Windows to analyze in huge inputs, null to analyze inputs whole.
+     */
+    private final SamplingStrategy sampling;
+    /**
+     * Observer of every detection, null if detections are not observed.
+     */
+    private final DetectionListener listener;
+
+    /**
+     * Creates a detector that uses the default model.
+     */
+    public CharsetDetector() {
+        this(getCyrDetector());
+    }
+
+    /**
+     * @param cyrDetector detector of one-byte charsets, e.g. one that uses a custom model
+     */
+    public CharsetDetector(CyrillicCharsetDetector cyrDetector) {
+        this(cyrDetector, null);
+    }
+
+    /**
+     * Creates a detector that analyzes only the windows of huge inputs
+     * chosen by the sampling strategy and merges their stats, so detection takes bounded time.
+     * UTF-8 is detected if all the windows are valid UTF-8.
+     * Early exit of the cyrillic detector is not used for sampled inputs.
+     *
+     * @param cyrDetector detector of one-byte charsets
+     * @param sampling windows to analyze, null to analyze inputs whole
+     */
+    public CharsetDetector(CyrillicCharsetDetector cyrDetector, SamplingStrategy sampling) {
+        this(cyrDetector, sampling, null);
+    }
+
+    /**
+     * Creates a detector that reports every detection to the listener, e.g. to #DetectionMetrics.
+     * Without a listener the detection path is not instrumented at all.
+     *
+     * @param cyrDetector detector of one-byte charsets
+     * @param sampling windows to analyze, null to analyze inputs whole
+     * @param listener observer of detections, null for none
+     */
+    public CharsetDetector(CyrillicCharsetDetector cyrDetector, SamplingStrategy sampling,
+            DetectionListener listener) {
+        this.cyrDetector = cyrDetector;
+        this.sampling = sampling;
+        this.listener = listener;
+    }
 
     /**
      * Factory method for CyrillicCharsetDetector.
+     * Detectors share the default model, so this call is cheap.
      * @return CyrillicCharsetDetector instance
      */
     public static CyrillicCharsetDetector getCyrDetector() {
-        try {
-            ObjectInputStream boundaryTrigramsStream = new ObjectInputStream(
-                    CharsetDetector.class.getResourceAsStream("/wordThresholds.data"));
-            BitSet boundaryTrigrams = (BitSet) boundaryTrigramsStream.readObject();
-            boundaryTrigramsStream.close();
+        return new CyrillicCharsetDetector(DetectionModel.getDefault());
+    }
 
-            ObjectInputStream trigramsStream = new ObjectInputStream(
-                    CharsetDetector.class.getResourceAsStream("/triples.data"));
-            BitSet trigrams = (BitSet) trigramsStream.readObject();
-            trigramsStream.close();
+    /**
+     * Detects a cyrillic charset by array of bytes.
+     *
+     * @param b bytes' array
+     * @return java.nio.charset.Charset instance
+     */
+    public Charset detectNioCharset(byte[] b) {
+        return detect(b, 0, b.length);
+    }
 
-            ObjectInputStream frequenciesStream = new ObjectInputStream(
-                    CharsetDetector.class.getResourceAsStream("/frequencies.data"));
-            int[] frequencies = (int[]) frequenciesStream.readObject();
-            frequenciesStream.close();
+    /**
+     * Detects a cyrillic charset by the given range of bytes' array.
+     * The range is neither copied nor modified.
+     * Nothing is allocated: the state of the call is kept in a context of the current thread.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @return java.nio.charset.Charset instance
+     */
+    public Charset detect(byte[] buf, int off, int len) {
+        if (listener != null || len > BLOCK_SIZE || (sampling != null && sampling.isSampled(len))) {
+            return detect(buf, off, len, DetectionContext.forCurrentThread());
+        }
+        if (UTF8CharsetDetector.isUTF8(buf, off, len)) {
+            return NIO_CS_UTF;
+        }
+        return cyrDetector.detectUnobserved(buf, off, len, DetectionContext.forCurrentThread()).getNioCharset();
+    }
 
-            return new CyrillicCharsetDetector(boundaryTrigrams, trigrams, frequencies);
+    /**
+     * Same as #detect(byte[], int, int) but keeps the state of the call in the given context,
+     * so nothing is allocated.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return java.nio.charset.Charset instance
+     */
+    public Charset detect(byte[] buf, int off, int len, DetectionContext ctx) {
+        if (listener == null) {
+            return detectUnobserved(buf, off, len, ctx);
+        }
+        long start = System.nanoTime();
+        Charset charset = detectUnobserved(buf, off, len, ctx);
+        notifyListener(charset, len, ctx, start);
+        return charset;
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    private Charset detectUnobserved(byte[] buf, int off, int len, DetectionContext ctx) {
+        if (sampling != null && sampling.isSampled(len)) {
+            checkRange(buf, off, len);
+            return detectSampled(buf, off, len, ctx);
+        }
+        if (isFused(len)) {
+            checkRange(buf, off, len);
+            return detectFused(buf, off, len, ctx);
+        }
+        if (UTF8CharsetDetector.isUTF8(buf, off, len)) {
+            ctx.setBytesConsumed(len);
+            return NIO_CS_UTF;
         }
+        return cyrDetector.detectUnobserved(buf, off, len, ctx).getNioCharset();
     }
 
     /**
-     * Detects a cyrillic charset by array of bytes.
+     * Same as #detect(byte[], int, int) but fills the result with the ranked candidates,
+     * their confidences and the way they were found. Nothing is allocated.
      *
-     * @param b bytes' array
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @param result reusable result, must not be used by other threads during the call
+     * @return the result
+     */
+    public DetectionResult detect(byte[] buf, int off, int len, DetectionResult result) {
+        return fillResult(detect(buf, off, len, result.context()), result, len);
+    }
+
+    /**
+     * Same as #detect(ByteBuffer) but fills the result with the ranked candidates,
+     * their confidences and the way they were found. Nothing is allocated.
+     *
+     * @param buf bytes' buffer
+     * @param result reusable result, must not be used by other threads during the call
+     * @return the result
+     */
+    public DetectionResult detect(ByteBuffer buf, DetectionResult result) {
+        return fillResult(detect(buf, result.context()), result, buf.remaining());
+    }
+
+    private static DetectionResult fillResult(Charset detected, DetectionResult result, int len) {
+        if (NIO_CS_UTF.equals(detected)) {
+            result.setUTF8(result.context().getBytesConsumed());
+            return result;
+        }
+        return CyrillicCharsetDetector.fillResult(result, len);
+    }
+
+    /**
+     * Detects the charset of the given range of bytes and decodes them.
+     * One-byte charsets are decoded by the tables of #CyrillicCharset without a charset decoder.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to decode
+     * @param len number of bytes to decode
+     * @return decoded string
+     */
+    public String detectAndDecode(byte[] buf, int off, int len) {
+        Charset charset = detect(buf, off, len);
+        CyrillicCharset cs = CyrillicCharset.forNioCharset(charset);
+        if (cs == null) {
+            return new String(buf, off, len, charset);
+        }
+        char[] chars = new char[len];
+        cs.decode(buf, off, len, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Detects the charset of the given range of bytes and decodes them into the char buffer.
+     * Chars are written straight to the array of a heap buffer, through the context block otherwise.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to decode
+     * @param len number of bytes to decode
+     * @param out receives the chars, must have room for len chars
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return detected charset
+     * @throws BufferOverflowException if there is no room for len chars, nothing is written then
+     */
+    public Charset detectAndDecode(byte[] buf, int off, int len, CharBuffer out, DetectionContext ctx) {
+        if (out.remaining() < len) {
+            throw new BufferOverflowException();
+        }
+        Charset charset = detect(buf, off, len, ctx);
+        if (!isDecodable(charset, buf, off, len)) {
+            out.put(new String(buf, off, len, charset));
+            return charset;
+        }
+        CyrillicCharset cs = CyrillicCharset.forNioCharset(charset);
+        if (out.hasArray()) {
+            int written = decode(cs, buf, off, off + len, out.array(), out.arrayOffset() + out.position());
+            out.position(out.position() + written);
+            return charset;
+        }
+        char[] chars = ctx.chars();
+        for (int from = off, end = off + len, to; from < end; from = to) {
+            to = chunkEnd(charset, buf, from, end, chars.length);
+            out.put(chars, 0, decode(cs, buf, from, to, chars, 0));
+        }
+        return charset;
+    }
+
+    /**
+     * Detects the charset of the given range of bytes and appends the decoded chars,
+     * block by block through the context, to a #StringBuilder, a #Writer or any other appendable.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to decode
+     * @param len number of bytes to decode
+     * @param out receives the chars
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return detected charset
+     * @throws IOException if the appendable fails
+     */
+    public Charset detectAndDecode(byte[] buf, int off, int len, Appendable out, DetectionContext ctx)
+            throws IOException {
+        if (out instanceof CharBuffer) {
+            return detectAndDecode(buf, off, len, (CharBuffer) out, ctx);
+        }
+        Charset charset = detect(buf, off, len, ctx);
+        if (!isDecodable(charset, buf, off, len)) {
+            out.append(new String(buf, off, len, charset));
+            return charset;
+        }
+        CyrillicCharset cs = CyrillicCharset.forNioCharset(charset);
+        char[] chars = ctx.chars();
+        for (int from = off, end = off + len, to; from < end; from = to) {
+            to = chunkEnd(charset, buf, from, end, chars.length);
+            int charsNum = decode(cs, buf, from, to, chars, 0);
+            if (out instanceof StringBuilder) {
+                ((StringBuilder) out).append(chars, 0, charsNum);
+            } else if (out instanceof Writer) {
+                ((Writer) out).write(chars, 0, charsNum);
+            } else {
+                out.append(CharBuffer.wrap(chars, 0, charsNum));
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * UTF-8 found by sampling may have ill-formed sequences between the windows,
+     * such input is decoded with replacement by the charset decoder.
+     *
+     * @return if the bytes may be decoded by #decode(CyrillicCharset, byte[], int, int, char[], int)
+     */
+    private boolean isDecodable(Charset charset, byte[] buf, int off, int len) {
+        return !(sampling != null && sampling.isSampled(len) && NIO_CS_UTF.equals(charset))
+                || UTF8CharsetDetector.isUTF8(buf, off, len);
+    }
+
+    /**
+     * @return end of the next chunk of at most maxLength bytes, not splitting UTF-8 sequences
+     */
+    private static int chunkEnd(Charset charset, byte[] buf, int from, int end, int maxLength) {
+        int to = end - from > maxLength ? from + maxLength : end;
+        return NIO_CS_UTF.equals(charset) ? UTF8CharsetDetector.sequenceBoundary(buf, from, to, end) : to;
+    }
+
+    /**
+     * Decodes bytes [from, to) in the detected one-byte charset, or in UTF-8 if it is null.
+     * UTF-8 sequences must not be split.
+     *
+     * @return number of chars written, at most the number of bytes
+     */
+    private static int decode(CyrillicCharset cs, byte[] buf, int from, int to, char[] dst, int dstOff) {
+        if (cs == null) {
+            return UTF8CharsetDetector.decode(buf, from, to, dst, dstOff);
+        }
+        cs.decode(buf, from, to - from, dst, dstOff);
+        return to - from;
+    }
+
+    /**
+     * Detects a cyrillic charset by the remaining bytes of the buffer.
+     * Both heap and direct buffers are supported. Buffer's position and limit are not changed.
+     * Nothing is allocated: the state of the call is kept in a context of the current thread.
+     *
+     * @param buf bytes' buffer
      * @return java.nio.charset.Charset instance
      */
-    public Charset detectNioCharset(byte[] b) {
-        if (UTF8CharsetDetector.isUTF8(b)) {
+    public Charset detect(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (listener != null || len > BLOCK_SIZE || (sampling != null && sampling.isSampled(len))) {
+            return detect(buf, DetectionContext.forCurrentThread());
+        }
+        if (UTF8CharsetDetector.isUTF8(buf)) {
+            return NIO_CS_UTF;
+        }
+        return cyrDetector.detectUnobserved(buf, DetectionContext.forCurrentThread()).getNioCharset();
+    }
+
+    /**
+     * Same as #detect(ByteBuffer) but keeps the state of the call in the given context,
+     * so nothing is allocated.
+     *
+     * @param buf bytes' buffer
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return java.nio.charset.Charset instance
+     */
+    public Charset detect(ByteBuffer buf, DetectionContext ctx) {
+        if (listener == null) {
+            return detectUnobserved(buf, ctx);
+        }
+        long start = System.nanoTime();
+        Charset charset = detectUnobserved(buf, ctx);
+        notifyListener(charset, buf.remaining(), ctx, start);
+        return charset;
+    }
+
+    private Charset detectUnobserved(ByteBuffer buf, DetectionContext ctx) {
+        if (sampling != null && sampling.isSampled(buf.remaining())) {
+            if (buf.hasArray()) {
+                return detectSampled(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), ctx);
+            }
+            return detectSampled(buf, buf.position(), buf.remaining(), ctx);
+        }
+        if (isFused(buf.remaining())) {
+            if (buf.hasArray()) {
+                return detectFused(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), ctx);
+            }
+            return detectFused(buf, buf.position(), buf.remaining(), ctx);
+        }
+        if (UTF8CharsetDetector.isUTF8(buf)) {
+            ctx.setBytesConsumed(buf.remaining());
             return NIO_CS_UTF;
         }
-        return cyrDetector.detectCyrillicCharset(b).getNioCharset();
+        return cyrDetector.detectUnobserved(buf, ctx).getNioCharset();
+    }
+
+    /**
+     * Inputs of several blocks are checked for UTF-8 and scanned for one-byte charsets in one pass.
+     * Early exit needs the cyrillic detector to see the bytes from the beginning, so it is not fused.
+     */
+    private boolean isFused(int len) {
+        return len > BLOCK_SIZE && cyrDetector.getEarlyExitMargin() == 0;
+    }
+
+    /**
+     * Checks UTF-8 and collects the stats of one-byte charsets in one pass, block by block,
+     * so the stats of a block are collected while it is still in cache. The UTF-8 check stops at
+     * the first ill-formed sequence. The stats of a block are collected right after its check
+     * if the input is not UTF-8, or speculatively if the block has non-ASCII bytes and the input
+     * does not look like UTF-8 yet (see #CONFIDENT_NON_ASCII_BYTES). ASCII blocks are deferred,
+     * and once the input looks like UTF-8 the rest is checked at once. Deferred stats are caught up
+     * only if the UTF-8 check fails, so UTF-8 and ASCII inputs are not slowed down.
+     * The result is the same as of the UTF-8 check followed by the cyrillic detector.
+     */
+    private Charset detectFused(byte[] buf, int off, int len, DetectionContext ctx) {
+        int end = off + len;
+        int state = UTF8CharsetDetector.ACCEPT;
+        int nonAscii = 0;
+        int pending = off; // the stats of bytes [pending, from) are not collected yet
+        cyrDetector.start(ctx);
+        for (int from = off, to; from < end; from = to) {
+            to = end - from > BLOCK_SIZE ? from + BLOCK_SIZE : end;
+            if (state != UTF8CharsetDetector.REJECT) {
+                if (nonAscii >= CONFIDENT_NON_ASCII_BYTES) {
+                    state = UTF8CharsetDetector.scan(state, buf, from, end);
+                    break;
+                }
+                int blockNonAscii = UTF8CharsetDetector.countNonAscii(buf, from, to,
+                        CONFIDENT_NON_ASCII_BYTES - nonAscii);
+                if (blockNonAscii == 0 && state == UTF8CharsetDetector.ACCEPT) {
+                    continue; // ASCII is valid UTF-8
+                }
+                nonAscii += blockNonAscii;
+                state = UTF8CharsetDetector.scan(state, buf, from, to);
+                if (state != UTF8CharsetDetector.REJECT && (to == end || nonAscii >= CONFIDENT_NON_ASCII_BYTES)) {
+                    continue;
+                }
+            }
+            cyrDetector.feed(ctx, buf, pending, to);
+            pending = to;
+        }
+        ctx.setBytesConsumed(len);
+        if (state == UTF8CharsetDetector.ACCEPT) {
+            return NIO_CS_UTF;
+        }
+        cyrDetector.feed(ctx, buf, pending, end);
+        cyrDetector.finish(ctx);
+        return CyrillicCharsetDetector.analyzeStats(ctx).getNioCharset();
+    }
+
+    /**
+     * Same as #detectFused(byte[], int, int, DetectionContext) for bytes [off, off + len) of a direct buffer.
+     * A block is copied to the context once for the UTF-8 check, and once more from cache for the stats.
+     */
+    private Charset detectFused(ByteBuffer buf, int off, int len, DetectionContext ctx) {
+        int end = off + len;
+        int state = UTF8CharsetDetector.ACCEPT;
+        int nonAscii = 0;
+        int pending = off;
+        byte[] block = ctx.block();
+        cyrDetector.start(ctx);
+        for (int from = off, to; from < end; from = to) {
+            to = end - from > BLOCK_SIZE ? from + BLOCK_SIZE : end;
+            if (state != UTF8CharsetDetector.REJECT) {
+                if (nonAscii >= CONFIDENT_NON_ASCII_BYTES) {
+                    state = UTF8CharsetDetector.scan(state, buf, from, end);
+                    break;
+                }
+                buf.get(from, block, 0, to - from);
+                int blockNonAscii = UTF8CharsetDetector.countNonAscii(block, 0, to - from,
+                        CONFIDENT_NON_ASCII_BYTES - nonAscii);
+                if (blockNonAscii == 0 && state == UTF8CharsetDetector.ACCEPT) {
+                    continue;
+                }
+                nonAscii += blockNonAscii;
+                state = UTF8CharsetDetector.scan(state, block, 0, to - from);
+                if (state != UTF8CharsetDetector.REJECT && (to == end || nonAscii >= CONFIDENT_NON_ASCII_BYTES)) {
+                    continue;
+                }
+            }
+            cyrDetector.feed(ctx, buf, pending, to);
+            pending = to;
+        }
+        ctx.setBytesConsumed(len);
+        if (state == UTF8CharsetDetector.ACCEPT) {
+            return NIO_CS_UTF;
+        }
+        cyrDetector.feed(ctx, buf, pending, end);
+        cyrDetector.finish(ctx);
+        return CyrillicCharsetDetector.analyzeStats(ctx).getNioCharset();
+    }
+
+    /**
+     * @return observer of detections, null if detections are not observed
+     */
+    DetectionListener getListener() {
+        return listener;
+    }
+
+    private void notifyListener(Charset charset, int len, DetectionContext ctx, long start) {
+        long nanos = System.nanoTime() - start;
+        DetectionResult.Method method;
+        if (NIO_CS_UTF.equals(charset)) {
+            method = DetectionResult.Method.UTF8;
+        } else if (len < 3) {
+            method = DetectionResult.Method.DEFAULT;
+        } else {
+            method = DetectionResult.Method.STATISTICS;
+        }
+        listener.detected(charset, method, ctx.getBytesConsumed(), nanos);
+    }
+
+    private Charset detectSampled(byte[] buf, int off, int len, DetectionContext ctx) {
+        int windowsNum = sampling.getWindowsNum();
+        ctx.setBytesConsumed(0);
+        boolean utf8 = true;
+        for (int w = 0; w < windowsNum && utf8; w++) {
+            int from = sampling.windowStart(buf, off, len, w);
+            int to = sampling.windowEnd(buf, off, len, w);
+            utf8 = UTF8CharsetDetector.scan(UTF8CharsetDetector.ACCEPT, buf, from, to) == UTF8CharsetDetector.ACCEPT;
+            ctx.setBytesConsumed(ctx.getBytesConsumed() + to - from);
+        }
+        if (utf8) {
+            return NIO_CS_UTF;
+        }
+
+        // stats of all the windows are merged, every window is wrapped with spaces
+        ctx.setBytesConsumed(0);
+        cyrDetector.start(ctx);
+        for (int w = 0; w < windowsNum; w++) {
+            int from = sampling.windowStart(buf, off, len, w);
+            int to = sampling.windowEnd(buf, off, len, w);
+            cyrDetector.restart(ctx);
+            cyrDetector.feed(ctx, buf, from, to);
+            cyrDetector.finish(ctx);
+            ctx.setBytesConsumed(ctx.getBytesConsumed() + to - from);
+        }
+        return CyrillicCharsetDetector.analyzeStats(ctx).getNioCharset();
+    }
+
+    private Charset detectSampled(ByteBuffer buf, int off, int len, DetectionContext ctx) {
+        int windowsNum = sampling.getWindowsNum();
+        ctx.setBytesConsumed(0);
+        boolean utf8 = true;
+        for (int w = 0; w < windowsNum && utf8; w++) {
+            int from = sampling.windowStart(buf, off, len, w);
+            int to = sampling.windowEnd(buf, off, len, w);
+            utf8 = UTF8CharsetDetector.scan(UTF8CharsetDetector.ACCEPT, buf, from, to) == UTF8CharsetDetector.ACCEPT;
+            ctx.setBytesConsumed(ctx.getBytesConsumed() + to - from);
+        }
+        if (utf8) {
+            return NIO_CS_UTF;
+        }
+
+        // stats of all the windows are merged, every window is wrapped with spaces
+        ctx.setBytesConsumed(0);
+        cyrDetector.start(ctx);
+        for (int w = 0; w < windowsNum; w++) {
+            int from = sampling.windowStart(buf, off, len, w);
+            int to = sampling.windowEnd(buf, off, len, w);
+            cyrDetector.restart(ctx);
+            cyrDetector.feed(ctx, buf, from, to);
+            cyrDetector.finish(ctx);
+            ctx.setBytesConsumed(ctx.getBytesConsumed() + to - from);
+        }
+        return CyrillicCharsetDetector.analyzeStats(ctx).getNioCharset();
     }
 }
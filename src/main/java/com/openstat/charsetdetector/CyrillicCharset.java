@@ -19,25 +19,93 @@ import static com.openstat.charsetdetector.util.Util.signToUnsign;
 
 import java.nio.charset.Charset;
 
+/**
+ * Registry of the supported one-byte charsets. Every charset carries the tables that map its bytes
+ * to letters of the alphabet, so the model, which is built over letters, serves all of them.
+ * A detector scans a subset of them, see #CyrillicCharsetDetector.getCandidates().
+ * The first charsets are the most popular ones.
+ */
 public enum CyrillicCharset {
 
     WIN_1251("windows-1251"),
     KOI8_R("KOI8-R"),
     KOI8_U("KOI8-U"),
-    CP866("Cp866");
+    CP866("Cp866"),
+    ISO_8859_5("ISO-8859-5"),
+    IBM855("IBM855"),
+    MAC_CYRILLIC("x-MacCyrillic");
     private static final String CHARS = "АБВГДЕЖЗИЙКЛМНОПРСТУФХЦЧШЩЪЫЬЭЮЯIЇЄ'абвгдежзийклмнопрстуфхцчшщъыьэюяiїє'";
     public static final int CHARS_NUM = CHARS.length() / 2;
-    private int[] ch2iCache = null;
+    /**
+     * Cached copy of values() to avoid cloning it on every call.
+     */
+    private static final CyrillicCharset[] CHARSETS = values();
+    /**
+     * Char indices of a byte in all the charsets at once: bits [8 * ordinal, 8 * ordinal + 8)
+     * of DECODE_TABLE[b & 0xff] hold the index in the charset as a signed byte (-1 if it is not a letter).
+     * One table of 2 KB serves all the charsets, see #CyrillicCharsetDetector.
+     */
+    static final long[] DECODE_TABLE = createDecodeTable();
+    /**
+     * Letter flags of a byte in all the charsets at once: bit 8 * ordinal of LETTER_TABLE[b & 0xff]
+     * is set if the byte is a letter in the charset. Lanes are 8 bits wide like in DECODE_TABLE,
+     * so flags of many bytes may be summed up in one long.
+     */
+    static final long[] LETTER_TABLE = createLetterTable();
+    /**
+     * Bit 8 * c + d of DIFFERENCE_TABLE[b & 0xff] is set if the byte has different char indices
+     * in the charsets with ordinals c < d. Charsets that have the same indices for all the bytes
+     * of an input have the same stats.
+     */
+    static final long[] DIFFERENCE_TABLE = createDifferenceTable();
     private final Charset nioCharset;
+    /**
+     * Built eagerly, so it is safely published to all threads as a final field.
+     */
+    private final int[] ch2iCache;
+    /**
+     * Chars of all the bytes as the NIO charset decodes them, U+FFFD for unmapped bytes.
+     */
+    private final char[] b2cTable;
 
     private CyrillicCharset(String nioCharsetName) {
         this.nioCharset = Charset.forName(nioCharsetName);
+        this.ch2iCache = createCharToIndexCache();
+        this.b2cTable = createByteToCharTable();
     }
 
     public Charset getNioCharset() {
         return nioCharset;
     }
 
+    /**
+     * @return the one-byte charset or null
+     */
+    static CyrillicCharset forNioCharset(Charset charset) {
+        for (CyrillicCharset cs : CHARSETS) {
+            if (cs.nioCharset.equals(charset)) {
+                return cs;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes bytes by the table, the same way as the NIO charset does but without a decoder.
+     *
+     * @param src bytes' array
+     * @param off offset of the first byte to decode
+     * @param len number of bytes to decode
+     * @param dst receives len chars
+     * @param dstOff offset of the first char in dst
+     */
+    void decode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        char[] table = b2cTable;
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = table[src[off + i] & 0xff];
+        }
+    }
+
     /**
      * If decoded character is a letter then index is number of that letter in alfabet.
      * Otherwise index is -1
@@ -46,11 +114,58 @@ public enum CyrillicCharset {
      * @return index
      */
     public int charToIndex(byte b) {
-        if (ch2iCache == null) {
-            ch2iCache = createCharToIndexCache();
+        return ch2iCache[signToUnsign(b)];
+    }
+
+    private static long[] createDecodeTable() {
+        if (CHARSETS.length > 8) {
+            throw new IllegalStateException("Decode table has room for 8 charsets only");
         }
+        long[] table = new long[256];
+        for (int b = 0; b < 256; b++) {
+            for (CyrillicCharset cs : CHARSETS) {
+                table[b] |= (cs.ch2iCache[b] & 0xffL) << (cs.ordinal() * 8);
+            }
+        }
+        return table;
+    }
 
-        return ch2iCache[signToUnsign(b)];
+    private static long[] createLetterTable() {
+        long[] table = new long[256];
+        for (int b = 0; b < 256; b++) {
+            for (int c = 0; c < CHARSETS.length; c++) {
+                if ((byte) (DECODE_TABLE[b] >> (c * 8)) >= 0) {
+                    table[b] |= 1L << (c * 8);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static long[] createDifferenceTable() {
+        long[] table = new long[256];
+        for (int b = 0; b < 256; b++) {
+            for (int c = 0; c < CHARSETS.length; c++) {
+                for (int d = c + 1; d < CHARSETS.length; d++) {
+                    if ((byte) (DECODE_TABLE[b] >> (c * 8)) != (byte) (DECODE_TABLE[b] >> (d * 8))) {
+                        table[b] |= 1L << (c * 8 + d);
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    private char[] createByteToCharTable() {
+        byte[] bytes = new byte[256];
+        for (int b = 0; b < 256; b++) {
+            bytes[b] = (byte) b;
+        }
+        char[] table = new String(bytes, nioCharset).toCharArray();
+        if (table.length != 256) {
+            throw new IllegalStateException(nioCharset + " is not a one-byte charset");
+        }
+        return table;
     }
 
     private void memorizeAdditionalChars(Charset cs, int[] cache) {
@@ -66,9 +181,11 @@ public enum CyrillicCharset {
             cache[i] = -1;
         }
 
-        for (int i = 0; i < CHARS_NUM; i++) {
+        // CHARS_NUM is not initialized yet when the enum constants are constructed
+        int charsNum = CHARS.length() / 2;
+        for (int i = 0; i < charsNum; i++) {
             cache[signToUnsign(charsBytes[i])] = i;
-            cache[signToUnsign(charsBytes[i + CHARS_NUM])] = i;
+            cache[signToUnsign(charsBytes[i + charsNum])] = i;
         }
 
         memorizeAdditionalChars(nioCharset, cache);
@@ -15,60 +15,164 @@
  */
 package com.openstat.charsetdetector;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.BitSet;
-import java.util.EnumMap;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 import static com.openstat.charsetdetector.CyrillicCharset.CHARS_NUM;
+import static com.openstat.charsetdetector.util.Util.checkRange;
 
 /**
  * Using for detection one byte cyrillic encoding.
- * See #CyrillicCharset for supporting encodings.
+ * See #CyrillicCharset for supporting encodings. A detector scans only its candidate charsets,
+ * so a deployment that sees few encodings may pick them to get a faster scan and fewer mistakes.
  *
  * Optimized to detect encodings for short byte sequences.
  *
- * Non thread safe.
+ * Immutable and thread safe: the state of a call lives in a #DetectionContext,
+ * so one instance may serve any number of threads.
  */
 public final class CyrillicCharsetDetector {
 
-    private static final int SPACE_CHAR_CODE = 0x20;
-    private final EnumMap<CyrillicCharset, Stats> statsPerCharset = createStats();
+    private static final byte SPACE_CHAR_CODE = 0x20;
+    /**
+     * Cached copy of CyrillicCharset.values() to avoid cloning it on every call.
+     */
+    private static final CyrillicCharset[] CHARSETS = DetectionContext.CHARSETS;
+    /**
+     * Number of bytes scanned between two checks of the early exit condition.
+     */
+    static final int EARLY_EXIT_CHECK_INTERVAL = 128;
+    /**
+     * Number of bytes scanned for one charset before the next one, see #feed.
+     */
+    static final int BLOCK_SIZE = DetectionContext.BLOCK_SIZE;
+    private static final byte[] TRAILING_SPACE = {SPACE_CHAR_CODE};
+    /**
+     * Number of bytes counted by #prefilter between two flushes of the 8-bit lanes.
+     * Every byte adds at most 2 to a lane.
+     */
+    private static final int PREFILTER_CHUNK = 64;
+    private static final int ALL_SURVIVE = -1;
+    /**
+     * Charsets scanned by default: the encodings that were supported before the rest
+     * of #CyrillicCharset was added, so default detections do not change.
+     */
+    public static final Set<CyrillicCharset> DEFAULT_CANDIDATES = Collections.unmodifiableSet(EnumSet.of(
+            CyrillicCharset.WIN_1251, CyrillicCharset.KOI8_R, CyrillicCharset.KOI8_U, CyrillicCharset.CP866));
+    private final DetectionModel model;
+    private final int earlyExitMargin;
+    /**
+     * Ordinals of the candidate charsets in ascending order, see #DetectionContext.candidates().
+     */
+    private final int[] candidates;
+    /**
+     * Observer of every call of the public detect methods, null if calls are not observed.
+     */
+    private final DetectionListener listener;
 
-    private static final class Stats {
+    /**
+     * The model is not copied, so any number of detectors may share it.
+     *
+     * @param model statistics of the learning set
+     */
+    public CyrillicCharsetDetector(DetectionModel model) {
+        this(model, 0);
+    }
 
-        public int invalids = 0;
-        public int all = 0;
-        public long frequencies = 1;
+    /**
+     * Creates a detector that stops scanning once the best charset leads every other one
+     * by the given number of trigrams (see #isDominant). Long inputs are usually decided
+     * by their first few hundred bytes, so the rest of them is not read.
+     * The number of bytes actually scanned is reported by #DetectionContext.getBytesConsumed().
+     *
+     * @param model statistics of the learning set
+     * @param earlyExitMargin lead in trigrams, 0 to scan the whole input
+     */
+    public CyrillicCharsetDetector(DetectionModel model, int earlyExitMargin) {
+        this(model, earlyExitMargin, DEFAULT_CANDIDATES);
+    }
 
-        public void reset() {
-            invalids = 0;
-            all = 0;
-            frequencies = 1;
+    /**
+     * Creates a detector that scans only the given charsets. The scan time grows with
+     * the number of candidates. Ties are resolved in favor of the charset that comes first
+     * in #CyrillicCharset, and inputs too short to analyze are taken for the first candidate.
+     *
+     * @param model statistics of the learning set
+     * @param earlyExitMargin lead in trigrams, 0 to scan the whole input
+     * @param candidates charsets to choose from, at least one
+     */
+    public CyrillicCharsetDetector(DetectionModel model, int earlyExitMargin, Set<CyrillicCharset> candidates) {
+        this(model, earlyExitMargin, candidates, null);
+    }
+
+    /**
+     * Creates a detector that reports every call of its public detect methods to the listener,
+     * e.g. to #DetectionMetrics. The scans it does for a #CharsetDetector are not reported,
+     * they are a part of the detections of that detector.
+     *
+     * @param model statistics of the learning set
+     * @param earlyExitMargin lead in trigrams, 0 to scan the whole input
+     * @param candidates charsets to choose from, at least one
+     * @param listener observer of detections, null for none
+     */
+    public CyrillicCharsetDetector(DetectionModel model, int earlyExitMargin, Set<CyrillicCharset> candidates,
+            DetectionListener listener) {
+        super();
+        if (earlyExitMargin < 0) {
+            throw new IllegalArgumentException("Negative early exit margin: " + earlyExitMargin);
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No candidate charsets");
+        }
+        this.model = model;
+        this.earlyExitMargin = earlyExitMargin;
+        this.listener = listener;
+        this.candidates = new int[candidates.size()];
+        int k = 0;
+        for (CyrillicCharset cs : EnumSet.copyOf(candidates)) {
+            this.candidates[k++] = cs.ordinal();
         }
     }
+
     /**
-     * Digram is a sequence of 2 cyrillic chars.
-     * This table presents how many times digram with number 'i' 
-     * meets in the learning-set text.
+     * The tables are copied, so later changes of the arguments do not affect the detector.
      */
-    private final int[] charFrequenciesTable;
+    public CyrillicCharsetDetector(BitSet wordThresholdsTable, BitSet triplesTable,
+            int[] charFrequenciesTable) {
+        this(new DetectionModel(wordThresholdsTable, triplesTable, charFrequenciesTable));
+    }
+
+    public DetectionModel getModel() {
+        return model;
+    }
+
     /**
-     * Trigram is a sequence of 3 cyrillic chars.
-     * This table presents if trigram with number 'i' exists in the learning-set text.
-     * These frequencies are incremented by 1 (the minimum value of this table is 1)
+     * @return lead in trigrams that stops the scan, 0 if the whole input is scanned
      */
-    private final BitSet trigramsTable;
+    public int getEarlyExitMargin() {
+        return earlyExitMargin;
+    }
+
     /**
-     * Boundary trigram is the first or the last trigram in a cyrillic word.
-     * This table presents if trigram with number 'i' exists in learning-set text.
+     * @return charsets this detector chooses from
      */
-    private final BitSet boundaryTrigramsTable;
+    public Set<CyrillicCharset> getCandidates() {
+        Set<CyrillicCharset> set = EnumSet.noneOf(CyrillicCharset.class);
+        for (int c : candidates) {
+            set.add(CHARSETS[c]);
+        }
+        return Collections.unmodifiableSet(set);
+    }
 
-    public CyrillicCharsetDetector(BitSet wordThresholdsTable, BitSet triplesTable,
-            int[] charFrequenciesTable) {
-        super();
-        this.boundaryTrigramsTable = wordThresholdsTable;
-        this.trigramsTable = triplesTable;
-        this.charFrequenciesTable = charFrequenciesTable;
+    /**
+     * @return the charset of inputs too short to analyze
+     */
+    CyrillicCharset mostPopular() {
+        return CHARSETS[candidates[0]];
     }
 
     /**
@@ -78,55 +182,482 @@ public final class CyrillicCharsetDetector {
      * @return CyrillicCharset instance
      */
     public CyrillicCharset detectCyrillicCharset(byte[] b) {
-        if (b.length < 3) { // too small to analyze
-            return CyrillicCharset.values()[0]; // most popular
-        }
-
-        resetStats();
-
-        byte[] bytes = wrapWithSpaces(b);
-        for (CyrillicCharset cs : CyrillicCharset.values()) {
-            Stats stats = statsPerCharset.get(cs);
-            // We go through all available 4-chars sequences 
-            // and look if they matches the patterns of digram,
-            // trigram or boundary trigram.
-            // 'A' = any cyrillic char (one or #CyrillicCharset.CHARS)
-            // '^' = other chars (spaces, punctuation marks, numbers, latin chars etc)
-            // '*' = any char
-            int index1;
-            // Char index is its alfabetic number if it is a cyrillic char
-            // or -1 otherwise. 
-            int index2 = cs.charToIndex(bytes[0]);
-            int index3 = cs.charToIndex(bytes[1]);
-            int index4 = cs.charToIndex(bytes[2]);
-            for (int i = 0; i < bytes.length - 3; i++) {
-                index1 = index2;
-                index2 = index3;
-                index3 = index4;
-                index4 = cs.charToIndex(bytes[i + 3]);
-                // chars sequence pattern: AA**
-                if (index1 >= 0 && index2 >= 0) {
-                    collectFrequenciesStats(stats, digramIndex(index1, index2));
-                    // chars sequence pattern: AAA*
-                    if (index3 >= 0) {
-                        collectStats(trigramsTable, stats,
-                                trigramIndex(index1, index2, index3));
-                        // chars sequence pattern: AAA^
-                        if (index4 < 0) {
-                            collectStats(boundaryTrigramsTable, stats,
-                                    endBoundaryTrigramIndex(index1, index2, index3));
-                        }
-
-                    }
-                    // chars sequence pattern: ^AAA
-                } else if (index1 < 0 && index2 >= 0 && index2 >= 0 && index3 >= 0 && index4 >= 0) {
-                    collectStats(boundaryTrigramsTable, stats,
-                            startBoundaryTrigramIndex(index2, index3, index4));
+        return detect(b, 0, b.length);
+    }
+
+    /**
+     * Detects which one-byte cyrillic charset was used to encode the string
+     * into the given range of bytes' array. The range is neither copied nor modified.
+     * Nothing is allocated: the state of the call is kept in a context of the current thread.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @return CyrillicCharset instance
+     */
+    public CyrillicCharset detect(byte[] buf, int off, int len) {
+        return detect(buf, off, len, DetectionContext.forCurrentThread());
+    }
+
+    /**
+     * Same as #detect(byte[], int, int) but keeps the state of the call in the given context,
+     * so nothing is allocated.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return CyrillicCharset instance
+     */
+    public CyrillicCharset detect(byte[] buf, int off, int len, DetectionContext ctx) {
+        if (listener == null) {
+            return detectUnobserved(buf, off, len, ctx);
+        }
+        long start = System.nanoTime();
+        CyrillicCharset charset = detectUnobserved(buf, off, len, ctx);
+        notifyListener(charset, len, ctx, start);
+        return charset;
+    }
+
+    /**
+     * Same as #detect(byte[], int, int, DetectionContext) but never reported to the listener.
+     */
+    CyrillicCharset detectUnobserved(byte[] buf, int off, int len, DetectionContext ctx) {
+        checkRange(buf, off, len);
+        ctx.setBytesConsumed(len);
+        if (len < 3) { // too small to analyze
+            ctx.setCandidates(candidates);
+            return mostPopular();
+        }
+
+        start(ctx);
+        if (earlyExitMargin == 0 && ctx.isFullStats()) {
+            feed(ctx, buf, off, off + len);
+        } else if (earlyExitMargin == 0) {
+            int survivors = prefilter(ctx, buf, off, off + len);
+            if (Integer.bitCount(survivors) == 1) {
+                return CHARSETS[Integer.numberOfTrailingZeros(survivors)];
+            }
+            feed(ctx, buf, off, off + len, survivors);
+        } else {
+            int end = off;
+            while (end < off + len) {
+                int from = end;
+                end = Math.min(off + len, from + EARLY_EXIT_CHECK_INTERVAL);
+                feed(ctx, buf, from, end);
+                if (end < off + len && isDominant(ctx, earlyExitMargin)) {
+                    // the scan is cut in the middle of input, there is no trailing space
+                    ctx.setBytesConsumed(end - off);
+                    return analyzeStats(ctx);
+                }
+            }
+        }
+        finish(ctx);
+
+        return analyzeStats(ctx);
+    }
+
+    /**
+     * Same as #detect(byte[], int, int) but fills the result with all the charsets ranked
+     * and their confidences. Nothing is allocated.
+     *
+     * @param buf bytes' array
+     * @param off offset of the first byte to analyze
+     * @param len number of bytes to analyze
+     * @param result reusable result, must not be used by other threads during the call
+     * @return the result
+     */
+    public DetectionResult detect(byte[] buf, int off, int len, DetectionResult result) {
+        detect(buf, off, len, result.context());
+        return fillResult(result, len);
+    }
+
+    /**
+     * Same as #detect(ByteBuffer) but fills the result with all the charsets ranked
+     * and their confidences. Nothing is allocated.
+     *
+     * @param buf bytes' buffer
+     * @param result reusable result, must not be used by other threads during the call
+     * @return the result
+     */
+    public DetectionResult detect(ByteBuffer buf, DetectionResult result) {
+        detect(buf, result.context());
+        return fillResult(result, buf.remaining());
+    }
+
+    /**
+     * Fills the result by the stats left in its context by the detection of len bytes.
+     */
+    static DetectionResult fillResult(DetectionResult result, int len) {
+        if (len < 3) {
+            result.setDefault(len);
+        } else {
+            result.setStatistics();
+        }
+        return result;
+    }
+
+    /**
+     * Detects which one-byte cyrillic charset was used to encode the string
+     * into the remaining bytes of the buffer.
+     * Both heap and direct buffers are supported. Buffer's position and limit are not changed.
+     * Nothing is allocated: the state of the call is kept in a context of the current thread.
+     *
+     * @param buf bytes' buffer
+     * @return CyrillicCharset instance
+     */
+    public CyrillicCharset detect(ByteBuffer buf) {
+        return detect(buf, DetectionContext.forCurrentThread());
+    }
+
+    /**
+     * Same as #detect(ByteBuffer) but keeps the state of the call in the given context,
+     * so nothing is allocated.
+     *
+     * @param buf bytes' buffer
+     * @param ctx scratch state, must not be used by other threads during the call
+     * @return CyrillicCharset instance
+     */
+    public CyrillicCharset detect(ByteBuffer buf, DetectionContext ctx) {
+        if (listener == null) {
+            return detectUnobserved(buf, ctx);
+        }
+        long start = System.nanoTime();
+        CyrillicCharset charset = detectUnobserved(buf, ctx);
+        notifyListener(charset, buf.remaining(), ctx, start);
+        return charset;
+    }
+
+    /**
+     * Same as #detect(ByteBuffer, DetectionContext) but never reported to the listener.
+     */
+    CyrillicCharset detectUnobserved(ByteBuffer buf, DetectionContext ctx) {
+        if (buf.hasArray()) {
+            return detectUnobserved(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), ctx);
+        }
+        int off = buf.position();
+        int end = buf.limit();
+        ctx.setBytesConsumed(end - off);
+        if (end - off < 3) { // too small to analyze
+            ctx.setCandidates(candidates);
+            return mostPopular();
+        }
+
+        start(ctx);
+        if (earlyExitMargin == 0) {
+            feed(ctx, buf, off, end);
+        } else {
+            int scanned = off;
+            while (scanned < end) {
+                int from = scanned;
+                scanned = Math.min(end, from + EARLY_EXIT_CHECK_INTERVAL);
+                feed(ctx, buf, from, scanned);
+                if (scanned < end && isDominant(ctx, earlyExitMargin)) {
+                    // the scan is cut in the middle of input, there is no trailing space
+                    ctx.setBytesConsumed(scanned - off);
+                    return analyzeStats(ctx);
                 }
             }
         }
+        finish(ctx);
+
+        return analyzeStats(ctx);
+    }
+
+    private void notifyListener(CyrillicCharset charset, int len, DetectionContext ctx, long start) {
+        long nanos = System.nanoTime() - start;
+        DetectionResult.Method method = len < 3 ? DetectionResult.Method.DEFAULT : DetectionResult.Method.STATISTICS;
+        listener.detected(charset.getNioCharset(), method, ctx.getBytesConsumed(), nanos);
+    }
+
+    // We go through all available 4-chars sequences once
+    // and look if they matches the patterns of digram,
+    // trigram or boundary trigram for every charset at the same time.
+    // 'A' = any cyrillic char (one or #CyrillicCharset.CHARS)
+    // '^' = other chars (spaces, punctuation marks, numbers, latin chars etc)
+    // '*' = any char
+    //
+    // Char index is its alfabetic number if it is a cyrillic char
+    // or -1 otherwise. The input is scanned by blocks small enough
+    // to stay in the L1 cache, and every block is scanned once per charset,
+    // so the window and the stats of a charset are kept in local variables
+    // and the input is read from memory only once.
+    // The input is virtually wrapped with spaces, so the first window
+    // starts with a space and the last one ends with a space.
+    // The scan may be split into any number of #feed calls,
+    // e.g. one per chunk of a stream.
+
+    /**
+     * Resets the stats and fills the window with spaces. The spaces are not letters,
+     * so the windows that do not reach the first byte of input collect nothing.
+     */
+    void start(DetectionContext ctx) {
+        ctx.setCandidates(candidates);
+        ctx.resetStats();
+        restart(ctx);
+    }
+
+    /**
+     * Fills the window with spaces but keeps the stats, so the next bytes are scanned
+     * as a separate piece of text and their stats are added to the previous ones.
+     */
+    void restart(DetectionContext ctx) {
+        for (int c : candidates) {
+            CyrillicCharset cs = CHARSETS[c];
+            ctx.window2()[c] = cs.charToIndex(SPACE_CHAR_CODE);
+            ctx.window3()[c] = cs.charToIndex(SPACE_CHAR_CODE);
+            ctx.window4()[c] = cs.charToIndex(SPACE_CHAR_CODE);
+        }
+    }
+
+    /**
+     * Collects the stats of bytes [from, to).
+     */
+    void feed(DetectionContext ctx, byte[] buf, int from, int to) {
+        feed(ctx, buf, from, to, ALL_SURVIVE);
+    }
+
+    /**
+     * Collects the stats of bytes [from, to) for the candidates in the bit mask of ordinals.
+     */
+    private void feed(DetectionContext ctx, byte[] buf, int from, int to, int survivors) {
+        for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE) {
+            int blockTo = to - blockFrom > BLOCK_SIZE ? blockFrom + BLOCK_SIZE : to;
+            for (int c : candidates) {
+                if ((survivors >>> c & 1) != 0) {
+                    scanBlock(ctx, c, buf, blockFrom, blockTo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the stats of bytes [from, to) of the buffer.
+     * Direct buffers are copied to the context block by block.
+     */
+    void feed(DetectionContext ctx, ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            feed(ctx, buf.array(), buf.arrayOffset() + from, buf.arrayOffset() + to);
+            return;
+        }
+        byte[] block = ctx.block();
+        for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE) {
+            int blockLength = Math.min(to - blockFrom, BLOCK_SIZE);
+            buf.get(blockFrom, block, 0, blockLength);
+            feed(ctx, block, 0, blockLength);
+        }
+    }
+
+    /**
+     * Collects the stats of the last window, which ends with the trailing space.
+     */
+    void finish(DetectionContext ctx) {
+        feed(ctx, TRAILING_SPACE, 0, 1);
+    }
+
+    /**
+     * The first stage of a whole input scan: rules out the candidates that can not be chosen
+     * by #analyzeStats, so only the rest of them are scanned by #scanBlock.
+     *
+     * The number of trigrams of a charset depends only on which bytes are its letters:
+     * a run of n >= 3 letters gives n - 2 trigrams and 2 boundary trigrams. So the trigrams
+     * of all the charsets are counted at once from #CyrillicCharset.LETTER_TABLE, one byte lane
+     * per charset, without the model. A candidate with fewer trigrams than the best one loses.
+     * A candidate that decodes every byte of input to the same chars as a previous one
+     * (see #CyrillicCharset.DIFFERENCE_TABLE) has the same stats and loses the tie.
+     *
+     * The context is left as after #start, except for the windows of the survivors.
+     *
+     * @return bit mask of the ordinals of the survivors, at least one
+     */
+    private int prefilter(DetectionContext ctx, byte[] buf, int from, int to) {
+        long[] letterTable = CyrillicCharset.LETTER_TABLE;
+        long[] differenceTable = CyrillicCharset.DIFFERENCE_TABLE;
+        int[] all = ctx.all();
+        // letter lanes of the last three bytes and trigram lanes of the last byte,
+        // the input is virtually wrapped with spaces
+        long letters1 = 0;
+        long letters2 = 0;
+        long letters3 = 0;
+        long trigrams1 = 0;
+        long differences = 0;
+
+        for (int chunkFrom = from; chunkFrom < to; chunkFrom += PREFILTER_CHUNK) {
+            int chunkTo = to - chunkFrom > PREFILTER_CHUNK ? chunkFrom + PREFILTER_CHUNK : to;
+            long counts = 0;
+            for (int i = chunkFrom; i < chunkTo; i++) {
+                int b = buf[i] & 0xff;
+                long letters = letterTable[b];
+                differences |= differenceTable[b];
+                // chars sequence pattern: AAA ending at this byte
+                long trigrams = letters & letters1 & letters2;
+                // plus ^AAA and the AAA^ that ends at the previous byte
+                counts += trigrams + (trigrams & ~letters3) + (trigrams1 & ~letters);
+                letters3 = letters2;
+                letters2 = letters1;
+                letters1 = letters;
+                trigrams1 = trigrams;
+            }
+            addLanes(all, counts);
+        }
+        // the trailing space ends the last trigram
+        addLanes(all, trigrams1);
+
+        int max = 0;
+        for (int c : candidates) {
+            max = Math.max(max, all[c]);
+        }
+        int survivors = 0;
+        for (int c : candidates) {
+            boolean duplicate = false;
+            for (int s = 0; s < c; s++) {
+                duplicate |= (survivors >>> s & 1) != 0 && (differences >>> (s * 8 + c) & 1) == 0;
+            }
+            if (all[c] == max && !duplicate) {
+                survivors |= 1 << c;
+            }
+            // the survivors are scanned from the start, the rest lose with no trigrams
+            all[c] = 0;
+        }
+        return survivors;
+    }
+
+    private void addLanes(int[] all, long lanes) {
+        for (int c : candidates) {
+            all[c] += (int) (lanes >>> (c * 8)) & 0xff;
+        }
+    }
+
+    /**
+     * Looks if the best charset by the current stats leads every other charset by at least
+     * the margin in the first criterion of #analyzeStats that differs.
+     * Charsets with exactly the same stats as the best one are not taken into account:
+     * they have decoded all the letters so far in the same way.
+     *
+     * @param ctx stats of the scan
+     * @param margin number of trigrams
+     * @return if the best charset is not likely to be overtaken by the rest of input
+     */
+    boolean isDominant(DetectionContext ctx, int margin) {
+        int[] all = ctx.all();
+        int[] invalids = ctx.invalids();
+        long[] frequencies = ctx.frequencies();
+        int best = analyzeStats(ctx).ordinal();
+        for (int c : ctx.candidates()) {
+            int lead = all[best] != all[c] ? all[best] - all[c] : invalids[c] - invalids[best];
+            if (lead < margin && (lead != 0 || frequencies[best] != frequencies[c])) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return analyzeStats();
+    /**
+     * Slides the window of the charset over bytes [from, to).
+     */
+    private void scanBlock(DetectionContext ctx, int c, byte[] buf, int from, int to) {
+        IntBuffer scores = model.windowScores();
+        if (scores.hasArray()) {
+            scanBlock(ctx, c, buf, from, to, scores.array());
+        } else {
+            scanBlock(ctx, c, buf, from, to, scores);
+        }
+    }
+
+    /**
+     * Slides the window of the charset over bytes [from, to) with a heap table of window scores.
+     *
+     * The score of the first three chars of a window (see #DetectionModel.windowScores())
+     * is the score of the last three chars of the previous window, so every byte costs
+     * one load of a score, and the stats are summed up without branches:
+     * 'letters' is 1 if the window matches AAA*, 'end' is 1 for AAA^ and 'start' is 1 for ^AAA.
+     */
+    private static void scanBlock(DetectionContext ctx, int c, byte[] buf, int from, int to, int[] scores) {
+        long[] decodeTable = CyrillicCharset.DECODE_TABLE;
+        int shift = c * 8;
+        int index1;
+        int index2 = ctx.window2()[c];
+        int index3 = ctx.window3()[c];
+        int index4 = ctx.window4()[c];
+        int all = ctx.all()[c];
+        int invalids = ctx.invalids()[c];
+        long frequencies = ctx.frequencies()[c];
+        int score = scores[DetectionModel.scoreSlot(index2, index3, index4)];
+
+        for (int i = from; i < to; i++) {
+            index1 = index2;
+            index2 = index3;
+            index3 = index4;
+            index4 = (byte) (decodeTable[buf[i] & 0xff] >> shift);
+            int nextScore = scores[DetectionModel.scoreSlot(index2, index3, index4)];
+
+            // chars sequence pattern: AA**
+            frequencies += score >>> DetectionModel.FREQUENCY_SHIFT;
+            // chars sequence pattern: AAA*
+            int letters = score & DetectionModel.LETTERS;
+            // chars sequence pattern: AAA^
+            int end = letters & (index4 >>> 31);
+            // chars sequence pattern: ^AAA
+            int start = nextScore & DetectionModel.LETTERS & (index1 >>> 31);
+            all += letters + end + start;
+            invalids += (letters & ~(score >>> 1))
+                    + (end & ~(score >>> 2))
+                    + (start & ~(nextScore >>> 3));
+            score = nextScore;
+        }
+
+        ctx.window2()[c] = index2;
+        ctx.window3()[c] = index3;
+        ctx.window4()[c] = index4;
+        ctx.all()[c] = all;
+        ctx.invalids()[c] = invalids;
+        ctx.frequencies()[c] = frequencies;
+    }
+
+    /**
+     * Same as #scanBlock(DetectionContext, int, byte[], int, int, int[]) with the table of window scores
+     * in the buffer of a direct model.
+     */
+    private static void scanBlock(DetectionContext ctx, int c, byte[] buf, int from, int to, IntBuffer scores) {
+        long[] decodeTable = CyrillicCharset.DECODE_TABLE;
+        int shift = c * 8;
+        int index1;
+        int index2 = ctx.window2()[c];
+        int index3 = ctx.window3()[c];
+        int index4 = ctx.window4()[c];
+        int all = ctx.all()[c];
+        int invalids = ctx.invalids()[c];
+        long frequencies = ctx.frequencies()[c];
+        int score = scores.get(DetectionModel.scoreSlot(index2, index3, index4));
+
+        for (int i = from; i < to; i++) {
+            index1 = index2;
+            index2 = index3;
+            index3 = index4;
+            index4 = (byte) (decodeTable[buf[i] & 0xff] >> shift);
+            int nextScore = scores.get(DetectionModel.scoreSlot(index2, index3, index4));
+
+            // chars sequence pattern: AA**
+            frequencies += score >>> DetectionModel.FREQUENCY_SHIFT;
+            // chars sequence pattern: AAA*
+            int letters = score & DetectionModel.LETTERS;
+            // chars sequence pattern: AAA^
+            int end = letters & (index4 >>> 31);
+            // chars sequence pattern: ^AAA
+            int start = nextScore & DetectionModel.LETTERS & (index1 >>> 31);
+            all += letters + end + start;
+            invalids += (letters & ~(score >>> 1))
+                    + (end & ~(score >>> 2))
+                    + (start & ~(nextScore >>> 3));
+            score = nextScore;
+        }
+
+        ctx.window2()[c] = index2;
+        ctx.window3()[c] = index3;
+        ctx.window4()[c] = index4;
+        ctx.all()[c] = all;
+        ctx.invalids()[c] = invalids;
+        ctx.frequencies()[c] = frequencies;
     }
 
     public static int startBoundaryTrigramIndex(int index2, int index3, int index4) {
@@ -160,57 +691,32 @@ public final class CyrillicCharsetDetector {
      * cyrillic trigrams (It means that)
      * @return detected charset
      */
-    private CyrillicCharset analyzeStats() {
-        CyrillicCharset best = CyrillicCharset.values()[0];
-
-        for (CyrillicCharset cs : CyrillicCharset.values()) {
-            Stats eachStats = statsPerCharset.get(cs);
-            Stats bestStats = statsPerCharset.get(best);
-            if (eachStats.all > bestStats.all
-                    || (eachStats.all == bestStats.all
-                    && (eachStats.invalids < bestStats.invalids
-                    || (eachStats.invalids == bestStats.invalids
-                    && eachStats.frequencies > bestStats.frequencies)))) {
+    static CyrillicCharset analyzeStats(DetectionContext ctx) {
+        int[] all = ctx.all();
+        int[] invalids = ctx.invalids();
+        long[] frequencies = ctx.frequencies();
+        int[] candidates = ctx.candidates();
+        int best = candidates[0];
+        long bestKey = rankKey(all[best], invalids[best]);
+        long bestFrequencies = frequencies[best];
 
-                best = cs;
-            }
+        for (int k = 1; k < candidates.length; k++) {
+            int c = candidates[k];
+            long key = rankKey(all[c], invalids[c]);
+            // non-short-circuit operators, so the choice compiles to conditional moves
+            boolean better = key > bestKey | (key == bestKey & frequencies[c] > bestFrequencies);
+            best = better ? c : best;
+            bestKey = better ? key : bestKey;
+            bestFrequencies = better ? frequencies[c] : bestFrequencies;
         }
-        return best;
-    }
-
-    private static byte[] wrapWithSpaces(byte[] b) {
-        byte[] bytes = new byte[b.length + 2];
-        bytes[0] = SPACE_CHAR_CODE;
-        System.arraycopy(b, 0, bytes, 1, b.length);
-        bytes[b.length + 1] = SPACE_CHAR_CODE;
-        return bytes;
+        return CHARSETS[best];
     }
 
-    // assert index > 0
-    private void collectStats(BitSet table, Stats stats, int index) {
-        stats.all++;
-        if (!table.get(index)) {
-            stats.invalids++;
-        }
-    }
-
-    // assert index > 0
-    private void collectFrequenciesStats(Stats stats, int index) {
-            stats.frequencies += charFrequenciesTable[index];
-
-    }
-
-    private static EnumMap<CyrillicCharset, Stats> createStats() {
-        EnumMap<CyrillicCharset, Stats> newStats = new EnumMap<CyrillicCharset, Stats>(CyrillicCharset.class);
-        for (CyrillicCharset cs : CyrillicCharset.values()) {
-            newStats.put(cs, new Stats());
-        }
-        return newStats;
-    }
-
-    private void resetStats() {
-        for (CyrillicCharset cs : CyrillicCharset.values()) {
-            statsPerCharset.get(cs).reset();
-        }
+    /**
+     * Packs the first two criteria of #analyzeStats into one number:
+     * more trigrams, then less invalid trigrams give a greater key.
+     */
+    static long rankKey(int all, int invalids) {
+        return ((long) all << 32) | (~invalids & 0xFFFFFFFFL);
     }
 }
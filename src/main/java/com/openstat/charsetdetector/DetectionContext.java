@@ -0,0 +1,187 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.util.Arrays;
+
+/**
+ * Scratch state of one detection: the sliding windows and the stats of every charset.
+ *
+ * Detectors are immutable and may be shared between threads,
+ * all the state of a call lives here. A context may be reused for any number of
+ * calls to avoid allocation, but it must not be used by several threads at once.
+ */
+public final class DetectionContext {
+
+    static final CyrillicCharset[] CHARSETS = CyrillicCharset.values();
+    static final int BLOCK_SIZE = 4096;
+    private static final int[] ALL_CANDIDATES = createAllCandidates();
+    private static final ThreadLocal<DetectionContext> THREAD_CONTEXTS = new ThreadLocal<DetectionContext>() {
+        @Override
+        protected DetectionContext initialValue() {
+            return new DetectionContext();
+        }
+    };
+
+    /**
+     * Ordinals of the charsets scanned by the detector that started the scan, in ascending order.
+     * The stats of the other charsets are not collected.
+     */
+    private int[] candidates = ALL_CANDIDATES;
+    /**
+     * If the stats of all the candidates are needed after the scan, e.g. by #DetectionResult.
+     * Otherwise a whole input scan collects only the stats of the candidates that may be chosen.
+     */
+    private final boolean fullStats;
+
+    /**
+     * Stats of every charset, indexed by charset ordinal:
+     * number of cyrillic trigrams and boundary trigrams,
+     * number of them that do not exist in the learning set,
+     * and sum of digram frequencies.
+     */
+    private final int[] all = new int[CHARSETS.length];
+    private final int[] invalids = new int[CHARSETS.length];
+    private final long[] frequencies = new long[CHARSETS.length];
+    /**
+     * The last three char indices of the sliding window, per charset ordinal.
+     */
+    private final int[] window2 = new int[CHARSETS.length];
+    private final int[] window3 = new int[CHARSETS.length];
+    private final int[] window4 = new int[CHARSETS.length];
+    /**
+     * Copy of a block of a direct buffer, scanned once per charset, allocated on the first copy.
+     */
+    private byte[] block;
+    /**
+     * Decoded chars of a block, allocated on the first decoding.
+     */
+    private char[] chars;
+    /**
+     * Number of bytes analyzed by the last detection.
+     */
+    private int bytesConsumed;
+
+    public DetectionContext() {
+        this(false);
+    }
+
+    DetectionContext(boolean fullStats) {
+        this.fullStats = fullStats;
+    }
+
+    /**
+     * @return number of bytes analyzed by the last detection with this context,
+     *         less than the input length if the detector stopped early
+     */
+    public int getBytesConsumed() {
+        return bytesConsumed;
+    }
+
+    void setBytesConsumed(int bytesConsumed) {
+        this.bytesConsumed = bytesConsumed;
+    }
+
+    /**
+     * Makes this context a copy of the other one, e.g. to finish a scan without losing its state.
+     *
+     * @param other context to copy
+     */
+    public void copyFrom(DetectionContext other) {
+        System.arraycopy(other.all, 0, all, 0, CHARSETS.length);
+        System.arraycopy(other.invalids, 0, invalids, 0, CHARSETS.length);
+        System.arraycopy(other.frequencies, 0, frequencies, 0, CHARSETS.length);
+        System.arraycopy(other.window2, 0, window2, 0, CHARSETS.length);
+        System.arraycopy(other.window3, 0, window3, 0, CHARSETS.length);
+        System.arraycopy(other.window4, 0, window4, 0, CHARSETS.length);
+        candidates = other.candidates;
+        bytesConsumed = other.bytesConsumed;
+    }
+
+    /**
+     * Context of the detect overloads that do not take one, so they allocate nothing either.
+     * Such an overload is done with the context before it returns, so a listener may detect again.
+     *
+     * @return context kept for the current thread
+     */
+    static DetectionContext forCurrentThread() {
+        return THREAD_CONTEXTS.get();
+    }
+
+    int[] candidates() {
+        return candidates;
+    }
+
+    void setCandidates(int[] candidates) {
+        this.candidates = candidates;
+    }
+
+    boolean isFullStats() {
+        return fullStats;
+    }
+
+    int[] all() {
+        return all;
+    }
+
+    int[] invalids() {
+        return invalids;
+    }
+
+    long[] frequencies() {
+        return frequencies;
+    }
+
+    int[] window2() {
+        return window2;
+    }
+
+    int[] window3() {
+        return window3;
+    }
+
+    int[] window4() {
+        return window4;
+    }
+
+    byte[] block() {
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+        }
+        return block;
+    }
+
+    char[] chars() {
+        if (chars == null) {
+            chars = new char[BLOCK_SIZE];
+        }
+        return chars;
+    }
+
+    void resetStats() {
+        Arrays.fill(all, 0);
+        Arrays.fill(invalids, 0);
+        Arrays.fill(frequencies, 1);
+    }
+
+    private static int[] createAllCandidates() {
+        int[] candidates = new int[CHARSETS.length];
+        for (int c = 0; c < CHARSETS.length; c++) {
+            candidates[c] = c;
+        }
+        return candidates;
+    }
+}
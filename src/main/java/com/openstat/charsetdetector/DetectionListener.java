@@ -0,0 +1,51 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.charset.Charset;
+
+/**
+ * Observes detections of a #CharsetDetector or a #CyrillicCharsetDetector, hits of a #CachingCharsetDetector
+ * and checks of #UTF8CharsetDetector, e.g. to collect metrics.
+ * It is called by the detecting threads right after every call, so it must be thread safe and cheap.
+ */
+public interface DetectionListener {
+
+    /**
+     * @param charset detected charset
+     * @param method how the charset was detected: by the UTF-8 check, by default for a too short input
+     *        or by the statistics of one-byte charsets
+     * @param bytesScanned number of bytes analyzed, less than the input length if the detector
+     *        stopped early or sampled the input
+     * @param nanos duration of the detection in nanoseconds
+     */
+    void detected(Charset charset, DetectionResult.Method method, int bytesScanned, long nanos);
+
+    /**
+     * Called instead of #detected when the charset of the input is found in a #CachingCharsetDetector.
+     *
+     * @param charset cached charset
+     * @param nanos duration of the lookup in nanoseconds
+     */
+    void cacheHit(Charset charset, long nanos);
+
+    /**
+     * @param valid if the bytes are valid UTF-8
+     * @param bytesScanned number of bytes checked
+     * @param nanos duration of the check in nanoseconds
+     */
+    void checkedUTF8(boolean valid, int bytesScanned, long nanos);
+}
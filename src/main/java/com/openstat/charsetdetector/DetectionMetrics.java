@@ -0,0 +1,251 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts detections of a #CharsetDetector: calls, bytes scanned, UTF-8 hits, short inputs, cache hits,
+ * detections of every charset and a histogram of latencies with power of two buckets.
+ * A cache hit counts as a call that scanned nothing, a UTF-8 check as a call
+ * that detected UTF-8 if the bytes are valid and nothing otherwise.
+ * Give every detector its own metrics, so the calls that one detector makes to another are not mixed up.
+ *
+ * Counters are striped (#LongAdder), so detecting threads do not contend for them.
+ * The metrics may be registered in the platform MBean server and watched by any JMX console.
+ *
+ * Thread safe.
+ */
+public final class DetectionMetrics implements DetectionListener, DetectionMetricsMBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "com.openstat.charsetdetector:type=DetectionMetrics";
+
+    /**
+     * The last bucket holds the detections of 2^(LATENCY_BUCKETS - 2) nanoseconds (about 9 minutes) and longer.
+     */
+    static final int LATENCY_BUCKETS = 40;
+
+    /**
+     * Detected charsets, UTF-8 first and one-byte charsets in the order of ordinals.
+     */
+    private static final Charset[] CHARSETS = createCharsets();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder bytesScanned = new LongAdder();
+    private final LongAdder utf8Hits = new LongAdder();
+    private final LongAdder shortInputs = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder[] decisions = createAdders(CHARSETS.length);
+    private final LongAdder[] latencies = createAdders(LATENCY_BUCKETS);
+
+    @Override
+    public void detected(Charset charset, DetectionResult.Method method, int bytesNum, long nanos) {
+        calls.increment();
+        bytesScanned.add(bytesNum);
+        if (method == DetectionResult.Method.UTF8) {
+            utf8Hits.increment();
+        } else if (method == DetectionResult.Method.DEFAULT) {
+            shortInputs.increment();
+        }
+        countDecision(charset);
+        latencies[latencyBucket(nanos)].increment();
+    }
+
+    @Override
+    public void cacheHit(Charset charset, long nanos) {
+        calls.increment();
+        cacheHits.increment();
+        countDecision(charset);
+        latencies[latencyBucket(nanos)].increment();
+    }
+
+    @Override
+    public void checkedUTF8(boolean valid, int bytesNum, long nanos) {
+        calls.increment();
+        bytesScanned.add(bytesNum);
+        if (valid) {
+            utf8Hits.increment();
+            decisions[0].increment();
+        }
+        latencies[latencyBucket(nanos)].increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getBytesScanned() {
+        return bytesScanned.sum();
+    }
+
+    @Override
+    public long getUTF8Hits() {
+        return utf8Hits.sum();
+    }
+
+    @Override
+    public long getShortInputs() {
+        return shortInputs.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public String[] getCharsetNames() {
+        String[] names = new String[CHARSETS.length];
+        for (int i = 0; i < CHARSETS.length; i++) {
+            names[i] = CHARSETS[i].name();
+        }
+        return names;
+    }
+
+    @Override
+    public long[] getDecisions() {
+        return sums(decisions);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        return sums(latencies);
+    }
+
+    @Override
+    public long getLatencyMedianNanos() {
+        return getLatencyPercentileNanos(0.5);
+    }
+
+    @Override
+    public long getLatency99Nanos() {
+        return getLatencyPercentileNanos(0.99);
+    }
+
+    /**
+     * @param fraction fraction of detections in (0, 1]
+     * @return upper bound of the latency bucket that the fraction of detections fits into, 0 if there are none
+     */
+    public long getLatencyPercentileNanos(double fraction) {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i == histogram.length - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Zeroes the counters. Detections that run at the same time may be partly counted.
+     */
+    @Override
+    public void reset() {
+        calls.reset();
+        bytesScanned.reset();
+        utf8Hits.reset();
+        shortInputs.reset();
+        cacheHits.reset();
+        for (LongAdder adder : decisions) {
+            adder.reset();
+        }
+        for (LongAdder adder : latencies) {
+            adder.reset();
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server under #DEFAULT_OBJECT_NAME.
+     */
+    public void register() {
+        register(DEFAULT_OBJECT_NAME);
+    }
+
+    /**
+     * @param objectName JMX name of the metrics, e.g. with a name key to tell several detectors apart
+     */
+    public void register(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void unregister(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return 0 for 0 nanoseconds, i for [2^(i - 1), 2^i) nanoseconds
+     */
+    static int latencyBucket(long nanos) {
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    private void countDecision(Charset charset) {
+        for (int i = 0; i < CHARSETS.length; i++) {
+            if (CHARSETS[i].equals(charset)) {
+                decisions[i].increment();
+                break;
+            }
+        }
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+
+    private static LongAdder[] createAdders(int num) {
+        LongAdder[] adders = new LongAdder[num];
+        for (int i = 0; i < num; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static Charset[] createCharsets() {
+        CyrillicCharset[] cyrillic = CyrillicCharset.values();
+        Charset[] charsets = new Charset[cyrillic.length + 1];
+        charsets[0] = Charset.forName("UTF-8");
+        for (CyrillicCharset cs : cyrillic) {
+            charsets[cs.ordinal() + 1] = cs.getNioCharset();
+        }
+        return charsets;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+/**
+ * JMX view of #DetectionMetrics.
+ */
+public interface DetectionMetricsMBean {
+
+    long getCalls();
+
+    long getBytesScanned();
+
+    long getUTF8Hits();
+
+    long getShortInputs();
+
+    long getCacheHits();
+
+    /**
+     * @return names of the charsets in the order of #getDecisions()
+     */
+    String[] getCharsetNames();
+
+    /**
+     * @return number of detections of every charset
+     */
+    long[] getDecisions();
+
+    /**
+     * @return number of detections that took [2^(i - 1), 2^i) nanoseconds for every i, the first one took 0
+     */
+    long[] getLatencyHistogram();
+
+    long getLatencyMedianNanos();
+
+    long getLatency99Nanos();
+
+    void reset();
+}
@@ -0,0 +1,478 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import static com.openstat.charsetdetector.CyrillicCharset.CHARS_NUM;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Linguistic statistics collected from the learning set
+ * and used by #CyrillicCharsetDetector.
+ *
+ * Immutable, so one instance is shared by all detectors.
+ * The default model is loaded from the class path once per class loader, on first use.
+ *
+ * The tables are kept in a buffer in the binary format below.
+ * It is a heap buffer for models read from streams and a memory mapped file for #map(File),
+ * so JVMs that map the same model file share one page-cached copy of it.
+ *
+ * The scan reads one dense table of window scores (see #windowScores()), about 200 KB.
+ * Version 2 of the format stores it, so a mapped or direct model is scanned straight from its buffer
+ * and nothing is derived when it is loaded. Version 1 has only the n-gram tables, so the score table
+ * is derived from them on the heap when such a model is loaded. Models built from the tables
+ * are always written in version 2.
+ *
+ * Binary format of the model (all numbers are big-endian):
+ * <pre>
+ * int    magic number 'CSDM'
+ * int    format version, 1 or 2
+ * int    number of chars in the alphabet (#CyrillicCharset.CHARS_NUM)
+ * int    number of words in the boundary trigrams table
+ * int    number of words in the trigrams table
+ * int    number of entries in the digram frequencies table
+ * long[] boundary trigrams table, bit 'i' is bit (i % 64) of word (i / 64)
+ * long[] trigrams table, in the same layout
+ * int[]  digram frequencies table
+ * int[]  window scores table of #SCORE_SLOTS^3 entries, version 2 only
+ * int    CRC32 of all the preceding bytes
+ * </pre>
+ * The header is 24 bytes long, so the bit tables are 8-byte aligned.
+ */
+public final class DetectionModel {
+
+    /**
+     * Name of the class path resource with the default model.
+     */
+    public static final String DEFAULT_MODEL_RESOURCE = "/model.data";
+
+    private static final int MAGIC = 0x4353444D; // 'CSDM'
+    private static final int VERSION_TABLES = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int BOUNDARY_TRIGRAMS_NUM = CHARS_NUM * CHARS_NUM * CHARS_NUM * 2;
+    private static final int TRIGRAMS_NUM = CHARS_NUM * CHARS_NUM * CHARS_NUM;
+    private static final int DIGRAMS_NUM = CHARS_NUM * CHARS_NUM;
+
+    /**
+     * Number of values of an index of a window score: a letter index + 1, or 0 for other chars.
+     */
+    static final int SCORE_SLOTS = CHARS_NUM + 1;
+    private static final int SCORES_NUM = SCORE_SLOTS * SCORE_SLOTS * SCORE_SLOTS;
+    /**
+     * Flags of a window score, the digram frequency is stored above them.
+     */
+    static final int LETTERS = 1;
+    static final int VALID_TRIGRAM = 2;
+    static final int VALID_END_BOUNDARY = 4;
+    static final int VALID_START_BOUNDARY = 8;
+    static final int FREQUENCY_SHIFT = 4;
+    /**
+     * Maximal digram frequency that fits into a window score.
+     */
+    static final int MAX_FREQUENCY = (1 << (31 - FREQUENCY_SHIFT)) - 1;
+
+    /**
+     * The whole model in the binary format.
+     */
+    private final ByteBuffer data;
+    /**
+     * Boundary trigram is the first or the last trigram in a cyrillic word.
+     * This table presents if trigram with number 'i' exists in learning-set text.
+     */
+    private final int boundaryTrigramsOffset;
+    private final int boundaryTrigramsWords;
+    /**
+     * Trigram is a sequence of 3 cyrillic chars.
+     * This table presents if trigram with number 'i' exists in the learning-set text.
+     */
+    private final int trigramsOffset;
+    private final int trigramsWords;
+    /**
+     * Digram is a sequence of 2 cyrillic chars.
+     * This table presents how many times digram with number 'i'
+     * meets in the learning-set text.
+     */
+    private final int charFrequenciesOffset;
+    /**
+     * A view of the stored table, or derived from the tables above for version 1, see #windowScores().
+     */
+    private final IntBuffer windowScores;
+
+    /**
+     * Lazy holder of the default model: the JVM loads it on first access
+     * to #getDefault() and publishes it safely to all threads.
+     */
+    private static final class DefaultModelHolder {
+        private static final DetectionModel DEFAULT_MODEL = load();
+    }
+
+    /**
+     * The tables are copied, so later changes of the arguments do not affect the model.
+     */
+    public DetectionModel(BitSet boundaryTrigramsTable, BitSet trigramsTable, int[] charFrequenciesTable) {
+        this(new DetectionModel(encode(boundaryTrigramsTable.toLongArray(), trigramsTable.toLongArray(),
+                charFrequenciesTable)).encodeWithWindowScores());
+    }
+
+    /**
+     * @param data valid model in the binary format, starting at position 0
+     */
+    private DetectionModel(ByteBuffer data) {
+        this.data = data;
+        this.boundaryTrigramsWords = data.getInt(12);
+        this.trigramsWords = data.getInt(16);
+        this.boundaryTrigramsOffset = HEADER_SIZE;
+        this.trigramsOffset = boundaryTrigramsOffset + boundaryTrigramsWords * 8;
+        this.charFrequenciesOffset = trigramsOffset + trigramsWords * 8;
+        if (data.getInt(4) == VERSION_TABLES) {
+            this.windowScores = IntBuffer.wrap(createWindowScores());
+        } else {
+            ByteBuffer stored = data.duplicate();
+            stored.position(charFrequenciesOffset + DIGRAMS_NUM * 4);
+            stored.limit(stored.position() + SCORES_NUM * 4);
+            IntBuffer view = stored.slice().asIntBuffer();
+            if (data.isDirect()) {
+                this.windowScores = view;
+            } else {
+                // a heap model is a private copy anyway, and an array is the fastest to scan
+                int[] scores = new int[SCORES_NUM];
+                view.get(scores);
+                this.windowScores = IntBuffer.wrap(scores);
+            }
+        }
+    }
+
+    /**
+     * @return the model shipped with the library
+     */
+    public static DetectionModel getDefault() {
+        return DefaultModelHolder.DEFAULT_MODEL;
+    }
+
+    /**
+     * Loads the model shipped with the library.
+     * Use #getDefault() to get the shared instance instead of loading a new one.
+     *
+     * @return new DetectionModel instance
+     */
+    public static DetectionModel load() {
+        try {
+            InputStream is = DetectionModel.class.getResourceAsStream(DEFAULT_MODEL_RESOURCE);
+            if (is == null) {
+                throw new IOException("No model resource " + DEFAULT_MODEL_RESOURCE);
+            }
+            try {
+                return read(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Memory maps a model file. The tables of a version 2 model stay in the file's pages,
+     * which are shared by all the JVMs that map it, and nothing is copied to the heap.
+     * The pages are read once to verify the checksum. A version 1 model gets a heap table of window scores
+     * (see the class doc), convert it with #ModelConverter to share it as well.
+     * The file must not be modified while the model is in use.
+     *
+     * @param file model file in the binary format
+     * @return new DetectionModel instance
+     * @throws IOException if the file can not be mapped or does not contain a valid model
+     */
+    public static DetectionModel map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            int size = checkHeader(mapped);
+            checkSize(mapped, size);
+            mapped.limit(size);
+            checkChecksum(mapped, size);
+            return create(mapped);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a model in the binary format with a single bulk read of its body.
+     * The stream is not closed.
+     *
+     * @param is stream positioned at the beginning of the model
+     * @return new DetectionModel instance
+     * @throws IOException if the stream can not be read or does not contain a valid model
+     */
+    public static DetectionModel read(InputStream is) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        DataInputStream dis = new DataInputStream(is);
+        dis.readFully(header);
+        int size = checkHeader(ByteBuffer.wrap(header));
+        byte[] bytes = new byte[size];
+        System.arraycopy(header, 0, bytes, 0, HEADER_SIZE);
+        dis.readFully(bytes, HEADER_SIZE, size - HEADER_SIZE);
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads a model in the binary format from the remaining bytes of the buffer and verifies its checksum.
+     * The tables are not copied, so the buffer must not be modified while the model is in use.
+     * Buffer's position and limit are not changed.
+     *
+     * @param buf heap or direct buffer positioned at the beginning of the model
+     * @return new DetectionModel instance
+     * @throws IOException if the buffer does not contain a valid model
+     */
+    public static DetectionModel read(ByteBuffer buf) throws IOException {
+        ByteBuffer model = buf.slice();
+        int size = checkHeader(model);
+        checkSize(model, size);
+        checkChecksum(model, size);
+        model.limit(size);
+        return create(model.asReadOnlyBuffer());
+    }
+
+    /**
+     * Creates a model of a buffer with a valid header and checksum, so a version 1 model
+     * whose tables can not be turned into window scores is reported as invalid, not as a wrong argument.
+     */
+    private static DetectionModel create(ByteBuffer data) throws IOException {
+        try {
+            return new DetectionModel(data);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Model is corrupt: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the model in the binary format. The stream is not closed.
+     *
+     * @param os output stream
+     * @throws IOException
+     */
+    public void write(OutputStream os) throws IOException {
+        byte[] bytes = new byte[data.limit()];
+        ByteBuffer model = data.duplicate();
+        model.position(0);
+        model.get(bytes);
+        os.write(bytes);
+        os.flush();
+    }
+
+    /**
+     * @param index boundary trigram index
+     * @return if the boundary trigram exists in the learning set
+     */
+    boolean isBoundaryTrigram(int index) {
+        int word = index >>> 6;
+        return word < boundaryTrigramsWords
+                && (data.getLong(boundaryTrigramsOffset + (word << 3)) & (1L << index)) != 0;
+    }
+
+    /**
+     * @param index trigram index
+     * @return if the trigram exists in the learning set
+     */
+    boolean isTrigram(int index) {
+        int word = index >>> 6;
+        return word < trigramsWords
+                && (data.getLong(trigramsOffset + (word << 3)) & (1L << index)) != 0;
+    }
+
+    /**
+     * @param index digram index
+     * @return how many times the digram meets in the learning set
+     */
+    int digramFrequency(int index) {
+        return data.getInt(charFrequenciesOffset + (index << 2));
+    }
+
+    /**
+     * Everything the scan needs to know about three chars (index1, index2, index3) in one int,
+     * so a window costs a single load. Any index may be -1 (not a letter).
+     * The entry #scoreSlot(index1, index2, index3) holds the frequency of digram (index1, index2)
+     * shifted by #FREQUENCY_SHIFT (0 unless both are letters) and the flags:
+     * #LETTERS if all three chars are letters, then #VALID_TRIGRAM, #VALID_END_BOUNDARY
+     * and #VALID_START_BOUNDARY if the trigram exists in the learning set.
+     *
+     * @return the table, an array for heap models and a view of the buffer for direct ones, must not be modified
+     */
+    IntBuffer windowScores() {
+        return windowScores;
+    }
+
+    /**
+     * @return the same model in version 2 of the binary format, this model if it is already in it
+     */
+    DetectionModel withWindowScores() {
+        if (data.getInt(4) == VERSION) {
+            return this;
+        }
+        return new DetectionModel(encodeWithWindowScores());
+    }
+
+    static int scoreSlot(int index1, int index2, int index3) {
+        return ((index1 + 1) * SCORE_SLOTS + index2 + 1) * SCORE_SLOTS + index3 + 1;
+    }
+
+    private int[] createWindowScores() {
+        int[] scores = new int[SCORES_NUM];
+        for (int index1 = 0; index1 < CHARS_NUM; index1++) {
+            for (int index2 = 0; index2 < CHARS_NUM; index2++) {
+                int frequency = digramFrequency(CyrillicCharsetDetector.digramIndex(index1, index2));
+                if (frequency < 0 || frequency > MAX_FREQUENCY) {
+                    throw new IllegalArgumentException("Digram frequency " + frequency + " is out of range");
+                }
+                scores[scoreSlot(index1, index2, -1)] = frequency << FREQUENCY_SHIFT;
+                for (int index3 = 0; index3 < CHARS_NUM; index3++) {
+                    int score = frequency << FREQUENCY_SHIFT | LETTERS;
+                    if (isTrigram(CyrillicCharsetDetector.trigramIndex(index1, index2, index3))) {
+                        score |= VALID_TRIGRAM;
+                    }
+                    if (isBoundaryTrigram(CyrillicCharsetDetector.endBoundaryTrigramIndex(index1, index2, index3))) {
+                        score |= VALID_END_BOUNDARY;
+                    }
+                    if (isBoundaryTrigram(CyrillicCharsetDetector.startBoundaryTrigramIndex(index1, index2, index3))) {
+                        score |= VALID_START_BOUNDARY;
+                    }
+                    scores[scoreSlot(index1, index2, index3)] = score;
+                }
+            }
+        }
+        return scores;
+    }
+
+    private static ByteBuffer encode(long[] boundaryTrigrams, long[] trigrams, int[] frequencies) {
+        if (boundaryTrigrams.length > words(BOUNDARY_TRIGRAMS_NUM) || trigrams.length > words(TRIGRAMS_NUM)
+                || frequencies.length != DIGRAMS_NUM) {
+            throw new IllegalArgumentException("Model tables have wrong sizes");
+        }
+        int size = bodySize(boundaryTrigrams.length, trigrams.length, frequencies.length);
+        ByteBuffer model = ByteBuffer.allocate(size);
+        model.putInt(MAGIC).putInt(VERSION_TABLES).putInt(CHARS_NUM)
+                .putInt(boundaryTrigrams.length).putInt(trigrams.length).putInt(frequencies.length);
+        for (long word : boundaryTrigrams) {
+            model.putLong(word);
+        }
+        for (long word : trigrams) {
+            model.putLong(word);
+        }
+        for (int frequency : frequencies) {
+            model.putInt(frequency);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(model.array(), 0, size - 4);
+        model.putInt((int) crc.getValue());
+        model.flip();
+        return model.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the tables of this model and appends the table of window scores.
+     *
+     * @return the model in version 2 of the binary format
+     */
+    private ByteBuffer encodeWithWindowScores() {
+        int tablesSize = charFrequenciesOffset + DIGRAMS_NUM * 4;
+        int size = tablesSize + SCORES_NUM * 4 + 4;
+        ByteBuffer model = ByteBuffer.allocate(size);
+        ByteBuffer tables = data.duplicate();
+        tables.position(0);
+        tables.limit(tablesSize);
+        model.put(tables);
+        model.putInt(4, VERSION);
+        for (int i = 0; i < SCORES_NUM; i++) {
+            model.putInt(windowScores.get(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(model.array(), 0, size - 4);
+        model.putInt((int) crc.getValue());
+        model.flip();
+        return model.asReadOnlyBuffer();
+    }
+
+    /**
+     * Validates the header at the beginning of the buffer.
+     *
+     * @return the whole size of the model in bytes
+     */
+    private static int checkHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new IOException("Model is truncated");
+        }
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a charset detector model");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION_TABLES && version != VERSION) {
+            throw new IOException("Unsupported model version " + version);
+        }
+        if (buf.getInt(8) != CHARS_NUM) {
+            throw new IOException("Model is built for " + buf.getInt(8) + " chars instead of " + CHARS_NUM);
+        }
+        int boundaryTrigramsWords = buf.getInt(12);
+        int trigramsWords = buf.getInt(16);
+        int digramsNum = buf.getInt(20);
+        if (boundaryTrigramsWords < 0 || boundaryTrigramsWords > words(BOUNDARY_TRIGRAMS_NUM)
+                || trigramsWords < 0 || trigramsWords > words(TRIGRAMS_NUM)
+                || digramsNum != DIGRAMS_NUM) {
+            throw new IOException("Model tables have wrong sizes");
+        }
+        int size = bodySize(boundaryTrigramsWords, trigramsWords, digramsNum);
+        return version == VERSION ? size + SCORES_NUM * 4 : size;
+    }
+
+    private static void checkSize(ByteBuffer buf, int size) throws IOException {
+        if (buf.remaining() < size) {
+            throw new IOException("Model is truncated");
+        }
+    }
+
+    /**
+     * Verifies the checksum of a model of the given size at the beginning of the buffer.
+     */
+    private static void checkChecksum(ByteBuffer buf, int size) throws IOException {
+        ByteBuffer body = buf.duplicate();
+        body.position(0);
+        body.limit(size - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buf.getInt(size - 4)) {
+            throw new IOException("Model checksum mismatch");
+        }
+    }
+
+    private static int bodySize(int boundaryTrigramsWords, int trigramsWords, int digramsNum) {
+        return HEADER_SIZE + (boundaryTrigramsWords + trigramsWords) * 8 + digramsNum * 4 + 4;
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) / 64;
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.charset.Charset;
+
+/**
+ * Detailed result of a detection: candidate charsets ranked from the best one,
+ * their confidences and the stats behind them.
+ *
+ * Mutable and reusable: a detector overwrites the result on every call, so nothing is allocated.
+ * The result keeps the scratch state of the call as well, so it replaces #DetectionContext
+ * in the detect overloads that take it. It must not be used by several threads at once.
+ */
+public final class DetectionResult {
+
+    /**
+     * How the result was obtained.
+     */
+    public static enum Method {
+        /** The bytes are valid UTF-8, it is the only candidate. */
+        UTF8,
+        /** The input is too short to analyze, the most popular charset is ranked first. */
+        DEFAULT,
+        /** One-byte charsets are ranked by the statistics of the input. */
+        STATISTICS
+    }
+
+    private static final Charset NIO_CS_UTF = Charset.forName("UTF-8");
+    private static final CyrillicCharset[] CHARSETS = DetectionContext.CHARSETS;
+    /**
+     * Every trigram that a candidate lacks or has invalid, compared to the best candidate,
+     * makes it this many times less likely.
+     */
+    private static final double MISS_ODDS = 4;
+
+    private final DetectionContext ctx = new DetectionContext(true);
+
+    private Method method;
+    private int bytesExamined;
+    private int candidatesNum;
+    /**
+     * Ordinals of the ranked one-byte charsets.
+     */
+    private final int[] ranked = new int[CHARSETS.length];
+    private final double[] confidences = new double[CHARSETS.length];
+    private final boolean[] merged = new boolean[CHARSETS.length];
+
+    /**
+     * @return scratch state of the detections into this result
+     */
+    DetectionContext context() {
+        return ctx;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return number of bytes analyzed, less than the input length if the detector stopped early
+     *         or sampled the input
+     */
+    public int getBytesExamined() {
+        return bytesExamined;
+    }
+
+    /**
+     * @return number of ranked candidates: 1 for UTF-8, otherwise the number of candidate charsets
+     *         of the detector (see #CyrillicCharsetDetector.getCandidates())
+     */
+    public int getCandidatesNum() {
+        return candidatesNum;
+    }
+
+    /**
+     * @return the best charset
+     */
+    public Charset getCharset() {
+        return getCharset(0);
+    }
+
+    /**
+     * @return confidence of the best charset
+     */
+    public double getConfidence() {
+        return getConfidence(0);
+    }
+
+    /**
+     * @param rank 0 for the best candidate
+     * @return charset of the candidate
+     */
+    public Charset getCharset(int rank) {
+        checkRank(rank);
+        return method == Method.UTF8 ? NIO_CS_UTF : CHARSETS[ranked[rank]].getNioCharset();
+    }
+
+    /**
+     * @param rank 0 for the best candidate
+     * @return one-byte charset of the candidate, null for UTF-8
+     */
+    public CyrillicCharset getCyrillicCharset(int rank) {
+        checkRank(rank);
+        return method == Method.UTF8 ? null : CHARSETS[ranked[rank]];
+    }
+
+    /**
+     * Confidences of the candidates are in [0, 1] and do not grow with the rank. Merged candidates
+     * (see #isMerged) share one confidence, and the confidences of the rest add up to 1.
+     * For #Method.STATISTICS a candidate is 4 times less likely than the best one for every trigram
+     * that it lacks or has invalid (not in the learning set) in excess of the best one,
+     * capped by the confidences of the better candidates. So one clear reading of a long text
+     * is close to 1, and readings that differ by a trigram or two share the confidence.
+     *
+     * @param rank 0 for the best candidate
+     * @return confidence of the candidate
+     */
+    public double getConfidence(int rank) {
+        checkRank(rank);
+        return confidences[rank];
+    }
+
+    /**
+     * Charsets that decode all the letters of the input to the same chars, e.g. KOI8-R and KOI8-U
+     * for Russian text, have the same stats and can not be told apart. The worse ranked of them
+     * are merged with the first one.
+     *
+     * @param rank 0 for the best candidate
+     * @return if the candidate has the same stats as the previous one and shares its confidence
+     */
+    public boolean isMerged(int rank) {
+        checkRank(rank);
+        return merged[rank];
+    }
+
+    /**
+     * @param rank 0 for the best candidate
+     * @return number of trigrams and boundary trigrams of letters, 0 unless #Method.STATISTICS
+     */
+    public int getTrigrams(int rank) {
+        checkRank(rank);
+        return method == Method.STATISTICS ? ctx.all()[ranked[rank]] : 0;
+    }
+
+    /**
+     * @param rank 0 for the best candidate
+     * @return number of trigrams that do not exist in the learning set, 0 unless #Method.STATISTICS
+     */
+    public int getInvalidTrigrams(int rank) {
+        checkRank(rank);
+        return method == Method.STATISTICS ? ctx.invalids()[ranked[rank]] : 0;
+    }
+
+    void setUTF8(int bytesNum) {
+        method = Method.UTF8;
+        bytesExamined = bytesNum;
+        candidatesNum = 1;
+        confidences[0] = 1;
+        merged[0] = false;
+    }
+
+    void setDefault(int bytesNum) {
+        int[] candidates = ctx.candidates();
+        method = Method.DEFAULT;
+        bytesExamined = bytesNum;
+        candidatesNum = candidates.length;
+        for (int r = 0; r < candidates.length; r++) {
+            ranked[r] = candidates[r];
+            confidences[r] = 1.0 / candidates.length;
+            merged[r] = false;
+        }
+    }
+
+    /**
+     * Ranks the charsets by the stats of the context in the order of #CyrillicCharsetDetector.analyzeStats.
+     */
+    void setStatistics() {
+        int[] candidates = ctx.candidates();
+        method = Method.STATISTICS;
+        bytesExamined = ctx.getBytesConsumed();
+        candidatesNum = candidates.length;
+        int[] all = ctx.all();
+        int[] invalids = ctx.invalids();
+        long[] frequencies = ctx.frequencies();
+
+        // insertion sort is stable, so charsets with the same stats keep the order of ordinals
+        for (int k = 0; k < candidates.length; k++) {
+            int c = candidates[k];
+            long key = CyrillicCharsetDetector.rankKey(all[c], invalids[c]);
+            int r = k;
+            while (r > 0 && isBetter(key, frequencies[c], ranked[r - 1])) {
+                ranked[r] = ranked[r - 1];
+                r--;
+            }
+            ranked[r] = c;
+        }
+
+        // the best candidate has the most trigrams, so the misses are never negative
+        int best = ranked[0];
+        int bestMisses = invalids[best];
+        double sum = 0;
+        for (int r = 0; r < candidatesNum; r++) {
+            int c = ranked[r];
+            int previous = ranked[r > 0 ? r - 1 : 0];
+            merged[r] = r > 0 && all[c] == all[previous] && invalids[c] == invalids[previous]
+                    && frequencies[c] == frequencies[previous];
+            int misses = all[best] - all[c] + invalids[c] - bestMisses;
+            double likelihood = Math.pow(MISS_ODDS, -Math.max(misses, 0));
+            confidences[r] = r == 0 ? 1 : merged[r] ? confidences[r - 1] : Math.min(likelihood, confidences[r - 1]);
+            sum += merged[r] ? 0 : confidences[r];
+        }
+        for (int r = 0; r < candidatesNum; r++) {
+            confidences[r] /= sum;
+        }
+    }
+
+    private boolean isBetter(long key, long frequencies, int other) {
+        long otherKey = CyrillicCharsetDetector.rankKey(ctx.all()[other], ctx.invalids()[other]);
+        return key > otherKey || (key == otherKey && frequencies > ctx.frequencies()[other]);
+    }
+
+    private void checkRank(int rank) {
+        if (method == null) {
+            throw new IllegalStateException("No detection result yet");
+        }
+        if (rank < 0 || rank >= candidatesNum) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " of " + candidatesNum + " candidates");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells which parts of a huge input are analyzed: the head, the tail
+ * and evenly spaced slices between them, so detection takes bounded time.
+ * Inputs not longer than all the windows together are analyzed whole.
+ *
+ * Window bounds are moved forward to the nearest whitespace, so words are not split.
+ * If there is no whitespace nearby, they are moved past UTF-8 continuation bytes,
+ * so multibyte sequences are not split either. Whitespace is ASCII in all supported charsets.
+ *
+ * Immutable and thread safe.
+ */
+public final class SamplingStrategy {
+
+    /**
+     * Maximal number of bytes a window bound is moved to reach a whitespace.
+     */
+    static final int MAX_SNAP_DISTANCE = 64;
+    private static final int MAX_UTF8_TAIL = 3;
+
+    private final int windowSize;
+    private final int windowsNum;
+
+    /**
+     * @param windowSize number of bytes in a window
+     * @param windowsNum number of windows including the head and the tail, at least 2
+     */
+    public SamplingStrategy(int windowSize, int windowsNum) {
+        if (windowSize < MAX_SNAP_DISTANCE || windowsNum < 2) {
+            throw new IllegalArgumentException("Wrong sampling windows: " + windowsNum + " x " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.windowsNum = windowsNum;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getWindowsNum() {
+        return windowsNum;
+    }
+
+    /**
+     * @param len input length
+     * @return if the input is analyzed by windows rather than whole
+     */
+    public boolean isSampled(int len) {
+        return len > (long) windowSize * windowsNum;
+    }
+
+    /**
+     * @return offset of the window from the beginning of input before snapping
+     */
+    private int rawStart(int len, int window) {
+        return (int) ((long) (len - windowSize) * window / (windowsNum - 1));
+    }
+
+    /**
+     * @param window window number, 0 is the head
+     * @return absolute offset of the first byte of the window
+     */
+    int windowStart(byte[] buf, int off, int len, int window) {
+        int start = off + rawStart(len, window);
+        return window == 0 ? start : snap(buf, start, off + len);
+    }
+
+    /**
+     * @param window window number, #getWindowsNum() - 1 is the tail
+     * @return absolute offset of the byte after the window
+     */
+    int windowEnd(byte[] buf, int off, int len, int window) {
+        int end = off + rawStart(len, window) + windowSize;
+        return window == windowsNum - 1 ? end : snap(buf, end, off + len);
+    }
+
+    /**
+     * Same as #windowStart(byte[], int, int, int) for the buffer bytes [off, off + len).
+     */
+    int windowStart(ByteBuffer buf, int off, int len, int window) {
+        int start = off + rawStart(len, window);
+        return window == 0 ? start : snap(buf, start, off + len);
+    }
+
+    /**
+     * Same as #windowEnd(byte[], int, int, int) for the buffer bytes [off, off + len).
+     */
+    int windowEnd(ByteBuffer buf, int off, int len, int window) {
+        int end = off + rawStart(len, window) + windowSize;
+        return window == windowsNum - 1 ? end : snap(buf, end, off + len);
+    }
+
+    /**
+     * @return the nearest whitespace at or after the bound,
+     *         or the nearest byte that is not a UTF-8 continuation byte
+     */
+    private static int snap(byte[] buf, int bound, int limit) {
+        int searchEnd = Math.min(limit, bound + MAX_SNAP_DISTANCE);
+        for (int i = bound; i < searchEnd; i++) {
+            if (isWhitespace(buf[i])) {
+                return i;
+            }
+        }
+        int i = bound;
+        while (i < limit && i - bound < MAX_UTF8_TAIL && isContinuation(buf[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int snap(ByteBuffer buf, int bound, int limit) {
+        int searchEnd = Math.min(limit, bound + MAX_SNAP_DISTANCE);
+        for (int i = bound; i < searchEnd; i++) {
+            if (isWhitespace(buf.get(i))) {
+                return i;
+            }
+        }
+        int i = bound;
+        while (i < limit && i - bound < MAX_UTF8_TAIL && isContinuation(buf.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
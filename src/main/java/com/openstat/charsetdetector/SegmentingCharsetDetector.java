@@ -0,0 +1,325 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import static com.openstat.charsetdetector.util.Util.checkRange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits data with runs in different charsets, e.g. concatenated logs or mail archives,
+ * into segments of one charset in one pass, without buffering the data.
+ *
+ * The data is cut into blocks at line ends, or at whitespace if lines are long, and the stats
+ * of every block are collected by the same scan as in #CyrillicCharsetDetector. A block votes
+ * for UTF-8 if it is valid UTF-8 with non-ASCII bytes, for the best one-byte charset by its stats
+ * otherwise, and pure ASCII blocks do not vote. When a block votes against the charset
+ * of the current segment, the blocks from it on are summed up as a candidate segment.
+ * The candidate becomes a new segment when it is confident of another charset:
+ * valid UTF-8 with the switch margin of non-ASCII bytes, or a one-byte charset that leads
+ * the others by the switch margin in trigrams (see #CyrillicCharsetDetector.isDominant).
+ * It is dropped as soon as a block votes for the current charset again, so single noisy lines
+ * do not split the data, and it starts anew from a block that votes for a third charset.
+ * Segments start at block boundaries.
+ *
+ * Non thread safe. Reusable after #reset().
+ */
+public final class SegmentingCharsetDetector {
+
+    /**
+     * Receives the segments in the order of data, every byte is in exactly one segment.
+     */
+    public interface Listener {
+
+        /**
+         * @param offset offset of the first byte of the segment from the first byte fed after reset
+         * @param length number of bytes in the segment, at least 1
+         * @param charset charset of the segment
+         */
+        void segment(long offset, long length, Charset charset);
+    }
+
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1024;
+    public static final int DEFAULT_SWITCH_MARGIN = StreamingCharsetDetector.CONFIDENT_LEAD;
+
+    private static final CyrillicCharset[] CHARSETS = DetectionContext.CHARSETS;
+    private static final Charset NIO_CS_UTF = Charset.forName("UTF-8");
+    /**
+     * Votes of blocks: charset ordinals, UTF-8 and no vote.
+     */
+    private static final int UTF8 = CHARSETS.length;
+    private static final int NONE = -1;
+    private static final int MAX_UTF8_TAIL = 3;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CyrillicCharsetDetector cyrDetector;
+    private final int maxBlockSize;
+    private final int switchMargin;
+    private final Listener listener;
+    /**
+     * Sliding windows over all the data and the stats of the current block.
+     */
+    private final DetectionContext ctx = new DetectionContext();
+    /**
+     * Stats of the candidate segment.
+     */
+    private final DetectionContext candidateCtx = new DetectionContext();
+    private byte[] readBuffer;
+
+    private long bytesFed;
+    private int blockLength;
+    private int blockUtf8State;
+    private int blockNonAsciiBytes;
+
+    private long segmentStart;
+    /**
+     * Charset of the current segment, NONE until the first segment is confident.
+     */
+    private int segmentCharset;
+    /**
+     * Offset of the candidate segment, -1 if there is no candidate.
+     * Until the first segment is confident, the candidate starts at 0.
+     */
+    private long candidateStart;
+    private boolean candidateInvalidUtf8;
+    private int candidateNonAsciiBytes;
+
+    /**
+     * Creates a detector that uses the default model, block size and switch margin.
+     *
+     * @param listener receives the segments
+     */
+    public SegmentingCharsetDetector(Listener listener) {
+        this(CharsetDetector.getCyrDetector(), DEFAULT_MAX_BLOCK_SIZE, DEFAULT_SWITCH_MARGIN, listener);
+    }
+
+    /**
+     * @param cyrDetector detector of one-byte charsets, e.g. one that uses a custom model
+     * @param maxBlockSize number of bytes after which a line is cut into blocks
+     * @param switchMargin lead in trigrams, or number of non-ASCII bytes of valid UTF-8,
+     *        that makes a candidate a new segment
+     * @param listener receives the segments
+     */
+    public SegmentingCharsetDetector(CyrillicCharsetDetector cyrDetector, int maxBlockSize, int switchMargin,
+            Listener listener) {
+        if (maxBlockSize < 2 || switchMargin < 1) {
+            throw new IllegalArgumentException("Wrong segmenting parameters: " + maxBlockSize + " bytes in block, "
+                    + switchMargin + " switch margin");
+        }
+        this.cyrDetector = cyrDetector;
+        this.maxBlockSize = maxBlockSize;
+        this.switchMargin = switchMargin;
+        this.listener = listener;
+        reset();
+    }
+
+    /**
+     * Forgets all the fed bytes. Segments that are not finished are not reported.
+     */
+    public void reset() {
+        cyrDetector.start(ctx);
+        candidateCtx.setCandidates(ctx.candidates());
+        bytesFed = 0;
+        startBlock();
+        segmentStart = 0;
+        segmentCharset = NONE;
+        startCandidate(0);
+    }
+
+    public void feed(byte[] chunk) {
+        feed(chunk, 0, chunk.length);
+    }
+
+    /**
+     * Reports the segments that are over before the chunk's end.
+     *
+     * @param chunk bytes' array
+     * @param off offset of the first byte of the chunk
+     * @param len length of the chunk
+     */
+    public void feed(byte[] chunk, int off, int len) {
+        checkRange(chunk, off, len);
+        int end = off + len;
+        int blockFrom = off;
+        for (int i = off; i < end; i++) {
+            byte b = chunk[i];
+            int length = blockLength + i - blockFrom;
+            // a long line is cut before a non-continuation byte, so UTF-8 sequences are not split
+            if (length >= maxBlockSize && ((b & 0xC0) != 0x80 || length >= maxBlockSize + MAX_UTF8_TAIL)) {
+                append(chunk, blockFrom, i);
+                endBlock();
+                blockFrom = i;
+                length = 0;
+            }
+            if (b == '\n' || (length >= maxBlockSize / 2 && (b == ' ' || b == '\t' || b == '\r'))) {
+                append(chunk, blockFrom, i + 1);
+                endBlock();
+                blockFrom = i + 1;
+            }
+        }
+        append(chunk, blockFrom, end);
+    }
+
+    /**
+     * Reports the rest of the segments and resets the detector.
+     */
+    public void finish() {
+        if (blockLength > 0) {
+            cyrDetector.finish(ctx);
+            endBlock();
+        }
+        if (bytesFed > segmentStart) {
+            int charset = segmentCharset;
+            if (charset == NONE) { // nothing was confident, so the data is one segment as in #CharsetDetector
+                charset = !candidateInvalidUtf8 ? UTF8
+                        : bytesFed < 3 ? cyrDetector.mostPopular().ordinal()
+                        : CyrillicCharsetDetector.analyzeStats(candidateCtx).ordinal();
+            }
+            listener.segment(segmentStart, bytesFed - segmentStart, toNioCharset(charset));
+        }
+        reset();
+    }
+
+    public long getBytesFed() {
+        return bytesFed;
+    }
+
+    /**
+     * Resets the detector and segments all the data of the stream. The stream is not closed.
+     *
+     * @param is input stream
+     * @throws IOException
+     */
+    public void detect(InputStream is) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = new byte[BUFFER_SIZE];
+        }
+        reset();
+        while (true) {
+            int read = is.read(readBuffer);
+            if (read < 0) {
+                break;
+            }
+            feed(readBuffer, 0, read);
+        }
+        finish();
+    }
+
+    /**
+     * Adds bytes [from, to) to the current block.
+     */
+    private void append(byte[] buf, int from, int to) {
+        if (from == to) {
+            return;
+        }
+        cyrDetector.feed(ctx, buf, from, to);
+        if (blockUtf8State != UTF8CharsetDetector.REJECT) {
+            blockUtf8State = UTF8CharsetDetector.scan(blockUtf8State, buf, from, to);
+        }
+        blockNonAsciiBytes += UTF8CharsetDetector.countNonAscii(buf, from, to, to - from);
+        blockLength += to - from;
+        bytesFed += to - from;
+    }
+
+    private void startBlock() {
+        // the windows are kept, so trigrams across block boundaries are not lost
+        ctx.resetStats();
+        blockLength = 0;
+        blockUtf8State = UTF8CharsetDetector.ACCEPT;
+        blockNonAsciiBytes = 0;
+    }
+
+    private void endBlock() {
+        long blockStart = bytesFed - blockLength;
+        boolean validUtf8 = blockUtf8State == UTF8CharsetDetector.ACCEPT;
+        int vote = vote(validUtf8);
+
+        if (candidateStart >= 0 && segmentCharset != NONE && vote == segmentCharset) {
+            candidateStart = -1;
+        } else if (vote != NONE && vote != segmentCharset && (candidateStart < 0
+                || (segmentCharset != NONE && vote != candidateCharset()))) {
+            // e.g. the block where the charset changes is garbage in both charsets
+            startCandidate(blockStart);
+        }
+        if (candidateStart >= 0 && (vote != NONE || segmentCharset == NONE)) {
+            addToCandidate(validUtf8);
+            int charset = candidateCharset();
+            if (segmentCharset != NONE && charset == segmentCharset) {
+                candidateStart = -1;
+            } else if (isConfident(charset)) {
+                if (candidateStart > segmentStart) {
+                    listener.segment(segmentStart, candidateStart - segmentStart, toNioCharset(segmentCharset));
+                }
+                segmentStart = candidateStart;
+                segmentCharset = charset;
+                candidateStart = -1;
+            }
+        }
+        startBlock();
+    }
+
+    private int vote(boolean validUtf8) {
+        if (blockNonAsciiBytes == 0) {
+            return NONE;
+        }
+        if (validUtf8) {
+            return UTF8;
+        }
+        for (int c = 0; c < CHARSETS.length; c++) {
+            if (ctx.all()[c] > 0) {
+                return CyrillicCharsetDetector.analyzeStats(ctx).ordinal();
+            }
+        }
+        return NONE;
+    }
+
+    private void startCandidate(long start) {
+        candidateStart = start;
+        candidateCtx.resetStats();
+        candidateInvalidUtf8 = false;
+        candidateNonAsciiBytes = 0;
+    }
+
+    private void addToCandidate(boolean validUtf8) {
+        for (int c = 0; c < CHARSETS.length; c++) {
+            candidateCtx.all()[c] += ctx.all()[c];
+            candidateCtx.invalids()[c] += ctx.invalids()[c];
+            candidateCtx.frequencies()[c] += ctx.frequencies()[c];
+        }
+        candidateInvalidUtf8 |= !validUtf8;
+        candidateNonAsciiBytes += blockNonAsciiBytes;
+    }
+
+    private int candidateCharset() {
+        if (!candidateInvalidUtf8) {
+            return candidateNonAsciiBytes > 0 ? UTF8 : NONE;
+        }
+        return CyrillicCharsetDetector.analyzeStats(candidateCtx).ordinal();
+    }
+
+    private boolean isConfident(int charset) {
+        if (charset == UTF8) {
+            return candidateNonAsciiBytes >= switchMargin;
+        }
+        return charset != NONE && cyrDetector.isDominant(candidateCtx, switchMargin);
+    }
+
+    private static Charset toNioCharset(int charset) {
+        return charset == UTF8 ? NIO_CS_UTF : CHARSETS[charset].getNioCharset();
+    }
+}
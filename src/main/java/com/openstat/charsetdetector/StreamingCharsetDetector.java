@@ -0,0 +1,227 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import static com.openstat.charsetdetector.util.Util.checkRange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Detects a cyrillic charset of data that comes in chunks, e.g. from a stream,
+ * without buffering the whole data.
+ *
+ * The state of UTF-8 validation, the sliding windows and the stats of every charset
+ * are carried from one chunk to the next one, so #result() is the same as the result of
+ * #CharsetDetector for all the fed bytes at once, wherever the chunk boundaries are.
+ * If reading is stopped before the end of data, #result(boolean) tells that to the detector.
+ *
+ * Non thread safe. Reusable after #reset().
+ */
+public final class StreamingCharsetDetector {
+
+    /**
+     * Number of non-ASCII bytes in valid UTF-8 that makes UTF-8 a confident answer.
+     */
+    public static final int CONFIDENT_NON_ASCII_BYTES = 64;
+    /**
+     * Lead of the best one-byte charset (in trigrams) that makes it a confident answer.
+     */
+    public static final int CONFIDENT_LEAD = 16;
+
+    private static final Charset NIO_CS_UTF = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CyrillicCharsetDetector cyrDetector;
+    private final DetectionContext ctx = new DetectionContext();
+    /**
+     * Used to finish the scan in #result() without changing ctx.
+     */
+    private final DetectionContext resultCtx = new DetectionContext();
+    private byte[] readBuffer;
+    private ByteBuffer channelBuffer;
+
+    private int utf8State;
+    private int nonAsciiBytes;
+    private long bytesFed;
+
+    /**
+     * Creates a detector that uses the default model.
+     */
+    public StreamingCharsetDetector() {
+        this(CharsetDetector.getCyrDetector());
+    }
+
+    /**
+     * @param cyrDetector detector of one-byte charsets, e.g. one that uses a custom model
+     */
+    public StreamingCharsetDetector(CyrillicCharsetDetector cyrDetector) {
+        this.cyrDetector = cyrDetector;
+        reset();
+    }
+
+    /**
+     * Forgets all the fed bytes.
+     */
+    public void reset() {
+        cyrDetector.start(ctx);
+        utf8State = UTF8CharsetDetector.ACCEPT;
+        nonAsciiBytes = 0;
+        bytesFed = 0;
+    }
+
+    public void feed(byte[] chunk) {
+        feed(chunk, 0, chunk.length);
+    }
+
+    /**
+     * @param chunk bytes' array
+     * @param off offset of the first byte of the chunk
+     * @param len length of the chunk
+     */
+    public void feed(byte[] chunk, int off, int len) {
+        checkRange(chunk, off, len);
+        int end = off + len;
+        if (utf8State != UTF8CharsetDetector.REJECT) {
+            utf8State = UTF8CharsetDetector.scan(utf8State, chunk, off, end);
+            for (int i = off; i < end && nonAsciiBytes < CONFIDENT_NON_ASCII_BYTES; i++) {
+                if (chunk[i] < 0) {
+                    nonAsciiBytes++;
+                }
+            }
+        }
+        cyrDetector.feed(ctx, chunk, off, end);
+        bytesFed += len;
+    }
+
+    /**
+     * Feeds the remaining bytes of the buffer. Buffer's position and limit are not changed.
+     *
+     * @param chunk heap or direct buffer
+     */
+    public void feed(ByteBuffer chunk) {
+        int off = chunk.position();
+        int end = chunk.limit();
+        if (utf8State != UTF8CharsetDetector.REJECT) {
+            utf8State = UTF8CharsetDetector.scan(utf8State, chunk, off, end);
+            for (int i = off; i < end && nonAsciiBytes < CONFIDENT_NON_ASCII_BYTES; i++) {
+                if (chunk.get(i) < 0) {
+                    nonAsciiBytes++;
+                }
+            }
+        }
+        cyrDetector.feed(ctx, chunk, off, end);
+        bytesFed += end - off;
+    }
+
+    /**
+     * @return the charset of all the bytes fed so far
+     */
+    public Charset result() {
+        if (utf8State == UTF8CharsetDetector.ACCEPT) {
+            return NIO_CS_UTF;
+        }
+        if (bytesFed < 3) { // too small to analyze
+            return cyrDetector.mostPopular().getNioCharset();
+        }
+        resultCtx.copyFrom(ctx);
+        cyrDetector.finish(resultCtx);
+        return CyrillicCharsetDetector.analyzeStats(resultCtx).getNioCharset();
+    }
+
+    /**
+     * If reading was stopped before the end of data, e.g. because the result is confident,
+     * the last chunk may end in the middle of a UTF-8 multibyte sequence.
+     * Then valid UTF-8 with a truncated tail is taken as UTF-8 once it is confident.
+     *
+     * @param stoppedEarly if the fed bytes are only a prefix of data
+     * @return the charset of all the bytes fed so far
+     */
+    public Charset result(boolean stoppedEarly) {
+        if (stoppedEarly && utf8State != UTF8CharsetDetector.REJECT && nonAsciiBytes >= CONFIDENT_NON_ASCII_BYTES) {
+            return NIO_CS_UTF;
+        }
+        return result();
+    }
+
+    /**
+     * Looks if the rest of data is not likely to change #result(), so reading may be stopped.
+     * That is either valid UTF-8 with enough non-ASCII chars or a one-byte charset
+     * that leads the others by #CONFIDENT_LEAD trigrams.
+     *
+     * @return if the result is clear
+     */
+    public boolean isConfident() {
+        if (utf8State != UTF8CharsetDetector.REJECT) {
+            return nonAsciiBytes >= CONFIDENT_NON_ASCII_BYTES;
+        }
+        return cyrDetector.isDominant(ctx, CONFIDENT_LEAD);
+    }
+
+    public long getBytesFed() {
+        return bytesFed;
+    }
+
+    /**
+     * Resets the detector and feeds it from the stream until the result is confident
+     * or the stream ends. The stream is not closed.
+     *
+     * @param is input stream
+     * @return detected charset
+     * @throws IOException
+     */
+    public Charset detect(InputStream is) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = new byte[BUFFER_SIZE];
+        }
+        reset();
+        while (!isConfident()) {
+            int read = is.read(readBuffer);
+            if (read < 0) {
+                return result(false);
+            }
+            feed(readBuffer, 0, read);
+        }
+        return result(true);
+    }
+
+    /**
+     * Resets the detector and feeds it from the channel until the result is confident
+     * or the channel ends. The channel is not closed.
+     *
+     * @param channel readable channel
+     * @return detected charset
+     * @throws IOException
+     */
+    public Charset detect(ReadableByteChannel channel) throws IOException {
+        if (channelBuffer == null) {
+            channelBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        reset();
+        while (!isConfident()) {
+            channelBuffer.clear();
+            if (channel.read(channelBuffer) < 0) {
+                return result(false);
+            }
+            channelBuffer.flip();
+            feed(channelBuffer);
+        }
+        return result(true);
+    }
+}
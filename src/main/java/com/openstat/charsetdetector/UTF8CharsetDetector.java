@@ -15,101 +15,419 @@
  */
 package com.openstat.charsetdetector;
 
-import static com.openstat.charsetdetector.util.Util.signToUnsign;
+import static com.openstat.charsetdetector.util.Util.checkRange;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Using for recognise if a sequence of bytes is valid utf-8 sequence.
+ *
+ * Runs of ASCII chars are skipped eight bytes at a time,
+ * the rest is checked by a deterministic finite automaton that accepts exactly
+ * the well-formed sequences of RFC 3629 (no overlong forms, surrogates or code points above U+10FFFF).
  */
 public final class UTF8CharsetDetector {
 
+    /**
+     * Result of UTF-8 validation.
+     */
+    public static enum Validity {
+        /** All the bytes form complete well-formed sequences. */
+        VALID,
+        /** There is an ill-formed sequence. */
+        INVALID,
+        /** The bytes are well-formed but the last sequence is cut off by the end of input. */
+        TRUNCATED
+    }
+
+    /**
+     * State of the automaton between complete sequences.
+     */
+    static final int ACCEPT = 0;
+    /**
+     * State of the automaton after an ill-formed sequence, it is never left.
+     */
+    static final int REJECT = 1;
+
+    private static final long NON_ASCII_MASK = 0x8080808080808080L;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    // Byte classes
+    private static final int ASCII = 0;
+    private static final int TAIL_80_8F = 1;
+    private static final int TAIL_90_9F = 2;
+    private static final int TAIL_A0_BF = 3;
+    private static final int ILLEGAL = 4;
+    private static final int HEAD_2 = 5;
+    private static final int HEAD_E0 = 6;
+    private static final int HEAD_3 = 7;
+    private static final int HEAD_ED = 8;
+    private static final int HEAD_F0 = 9;
+    private static final int HEAD_4 = 10;
+    private static final int HEAD_F4 = 11;
+    private static final int CLASSES_NUM = 12;
+
+    // States, see also ACCEPT and REJECT
+    private static final int NEED_1 = 2;
+    private static final int NEED_2 = 3;
+    private static final int NEED_3 = 4;
+    private static final int AFTER_E0 = 5;
+    private static final int AFTER_ED = 6;
+    private static final int AFTER_F0 = 7;
+    private static final int AFTER_F4 = 8;
+    private static final int STATES_NUM = 9;
+
+    private static final byte[] BYTE_CLASSES = createByteClasses();
+    /**
+     * Next state is TRANSITIONS[state * CLASSES_NUM + class of byte].
+     */
+    private static final byte[] TRANSITIONS = createTransitions();
+
     private UTF8CharsetDetector() {
     }
 
     /**
-     * Looks if bytes' bit format corresponds to UTF-8 specification 
+     * Looks if bytes' bit format corresponds to UTF-8 specification
      * (http://tools.ietf.org/html/rfc3629#section-3)
      *
      * @param bytes array of bytes
      * @return if bytes are encoded UTF-8 string
      */
     public static boolean isUTF8(byte[] bytes) {
-        try {
-            for (int i = 0; i < bytes.length;) {
-                byte b = bytes[i];
-                if (isSingleByteChar(b)) {
-                    i++;
-                } else if (isDoubleByteCharHead(b)) {
-                    if (!isCharTail(bytes[++i])) {
-                        return false;
-                    }
-                    i++;
-                } else if (isTripleByteCharHead(b)) {
-                    for (int j = 0; j < 2; j++) {
-                        if (!isCharTail(bytes[++i])) {
-                            return false;
-                        }
-                    }
-                    i++;
-                } else if (isQuaternaryByteCharHead(b)) {
-                    for (int j = 0; j < 0; j++) {
-                        if (!isCharTail(bytes[++i])) {
-                            return false;
+        return isUTF8(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Looks if bit format of the given range of bytes corresponds to UTF-8 specification.
+     * A sequence truncated by the end of the range is not valid.
+     *
+     * @param bytes array of bytes
+     * @param off offset of the first byte to check
+     * @param len number of bytes to check
+     * @return if bytes are encoded UTF-8 string
+     */
+    public static boolean isUTF8(byte[] bytes, int off, int len) {
+        checkRange(bytes, off, len);
+        return scan(ACCEPT, bytes, off, off + len) == ACCEPT;
+    }
+
+    /**
+     * Looks if bit format of the remaining bytes of the buffer corresponds to UTF-8 specification.
+     * Both heap and direct buffers are supported. Buffer's position and limit are not changed.
+     *
+     * @param buf bytes' buffer
+     * @return if bytes are encoded UTF-8 string
+     */
+    public static boolean isUTF8(ByteBuffer buf) {
+        return scan(ACCEPT, buf, buf.position(), buf.limit()) == ACCEPT;
+    }
+
+    /**
+     * Same as #isUTF8(byte[], int, int) but reports the check to the listener, e.g. to #DetectionMetrics.
+     *
+     * @param bytes array of bytes
+     * @param off offset of the first byte to check
+     * @param len number of bytes to check
+     * @param listener observer of the check, null for none
+     * @return if bytes are encoded UTF-8 string
+     */
+    public static boolean isUTF8(byte[] bytes, int off, int len, DetectionListener listener) {
+        if (listener == null) {
+            return isUTF8(bytes, off, len);
+        }
+        long start = System.nanoTime();
+        boolean valid = isUTF8(bytes, off, len);
+        listener.checkedUTF8(valid, len, System.nanoTime() - start);
+        return valid;
+    }
+
+    /**
+     * Same as #isUTF8(ByteBuffer) but reports the check to the listener, e.g. to #DetectionMetrics.
+     *
+     * @param buf bytes' buffer
+     * @param listener observer of the check, null for none
+     * @return if bytes are encoded UTF-8 string
+     */
+    public static boolean isUTF8(ByteBuffer buf, DetectionListener listener) {
+        if (listener == null) {
+            return isUTF8(buf);
+        }
+        long start = System.nanoTime();
+        boolean valid = isUTF8(buf);
+        listener.checkedUTF8(valid, buf.remaining(), System.nanoTime() - start);
+        return valid;
+    }
+
+    /**
+     * Validates the given range of bytes, telling an ill-formed sequence
+     * from a sequence cut off by the end of the range.
+     *
+     * @param bytes array of bytes
+     * @param off offset of the first byte to check
+     * @param len number of bytes to check
+     * @return validity of the bytes
+     */
+    public static Validity validate(byte[] bytes, int off, int len) {
+        checkRange(bytes, off, len);
+        return toValidity(scan(ACCEPT, bytes, off, off + len));
+    }
+
+    /**
+     * Validates the remaining bytes of the buffer, telling an ill-formed sequence
+     * from a sequence cut off by the limit. Buffer's position and limit are not changed.
+     *
+     * @param buf bytes' buffer
+     * @return validity of the bytes
+     */
+    public static Validity validate(ByteBuffer buf) {
+        return toValidity(scan(ACCEPT, buf, buf.position(), buf.limit()));
+    }
+
+    static Validity toValidity(int state) {
+        return state == ACCEPT ? Validity.VALID : state == REJECT ? Validity.INVALID : Validity.TRUNCATED;
+    }
+
+    /**
+     * Runs the automaton over bytes [from, to). The state may be carried
+     * from one call to the next one, so the input may be split into chunks at any byte.
+     *
+     * @param state state after the previous bytes, ACCEPT at the beginning of input
+     * @return state after the bytes
+     */
+    static int scan(int state, byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to) {
+            if (state == ACCEPT) {
+                while (i <= to - 8 && ((long) LONG_VIEW.get(bytes, i) & NON_ASCII_MASK) == 0) {
+                    i += 8;
+                }
+                // short runs of ASCII chars and 2-byte sequences (e.g. cyrillic words)
+                while (i < to) {
+                    byte b = bytes[i];
+                    if (b >= 0) {
+                        i++;
+                    } else if (i + 1 < to && isTwoByteSequence(b, bytes[i + 1])) {
+                        i += 2;
+                        if (i <= to - 8 && ((long) LONG_VIEW.get(bytes, i) & NON_ASCII_MASK) == 0) {
+                            break; // back to the long ASCII run
                         }
+                    } else {
+                        break;
                     }
-                    i++;
-                } else {
-                    return false;
                 }
+                if (i == to) {
+                    break;
+                }
+                if (bytes[i] >= 0) {
+                    continue;
+                }
+            }
+            state = TRANSITIONS[state * CLASSES_NUM + BYTE_CLASSES[bytes[i] & 0xff]];
+            if (state == REJECT) {
+                return REJECT;
             }
-            return true;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return false;
+            i++;
         }
+        return state;
     }
 
     /**
-     * is byte matches 0xxxxxxx.
-     * @param b
-     * @return
+     * Same as #scan(int, byte[], int, int) for bytes [from, to) of the buffer,
+     * read with absolute gets.
      */
-    static boolean isSingleByteChar(byte b) {
-        return b >= 0;
+    static int scan(int state, ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            int shift = buf.arrayOffset();
+            return scan(state, buf.array(), shift + from, shift + to);
+        }
+        int i = from;
+        while (i < to) {
+            if (state == ACCEPT) {
+                while (i <= to - 8 && (buf.getLong(i) & NON_ASCII_MASK) == 0) {
+                    i += 8;
+                }
+                // short runs of ASCII chars and 2-byte sequences (e.g. cyrillic words)
+                while (i < to) {
+                    byte b = buf.get(i);
+                    if (b >= 0) {
+                        i++;
+                    } else if (i + 1 < to && isTwoByteSequence(b, buf.get(i + 1))) {
+                        i += 2;
+                        if (i <= to - 8 && (buf.getLong(i) & NON_ASCII_MASK) == 0) {
+                            break; // back to the long ASCII run
+                        }
+                    } else {
+                        break;
+                    }
+                }
+                if (i == to) {
+                    break;
+                }
+                if (buf.get(i) >= 0) {
+                    continue;
+                }
+            }
+            state = TRANSITIONS[state * CLASSES_NUM + BYTE_CLASSES[buf.get(i) & 0xff]];
+            if (state == REJECT) {
+                return REJECT;
+            }
+            i++;
+        }
+        return state;
     }
 
     /**
-     * is byte matches 110xxxxx.
-     * @param b
-     * @return
+     * Decodes well-formed UTF-8 bytes [from, to) that do not end in the middle of a sequence.
+     * Supplementary code points are written as surrogate pairs, so there are never more chars than bytes.
+     *
+     * @param dst receives the chars
+     * @param dstOff offset of the first char in dst
+     * @return number of chars written
      */
-    static boolean isDoubleByteCharHead(byte b) {
-        return ((signToUnsign(b) >> 5) == 0x6);
+    static int decode(byte[] src, int from, int to, char[] dst, int dstOff) {
+        int d = dstOff;
+        int i = from;
+        while (i < to) {
+            int b = src[i];
+            if (b >= 0) {
+                dst[d++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0) {
+                dst[d++] = (char) ((b & 0x1F) << 6 | (src[i + 1] & 0x3F));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                dst[d++] = (char) ((b & 0x0F) << 12 | (src[i + 1] & 0x3F) << 6 | (src[i + 2] & 0x3F));
+                i += 3;
+            } else {
+                int codePoint = (b & 0x07) << 18 | (src[i + 1] & 0x3F) << 12 | (src[i + 2] & 0x3F) << 6
+                        | (src[i + 3] & 0x3F);
+                dst[d++] = Character.highSurrogate(codePoint);
+                dst[d++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            }
+        }
+        return d - dstOff;
     }
 
     /**
-     * is byte matches 1110xxxx.
-     * @param b
-     * @return
+     * @return the greatest offset not after to and after from that does not split a sequence
+     *         of well-formed UTF-8 bytes [from, end)
      */
-    static boolean isTripleByteCharHead(byte b) {
-        return (signToUnsign(b) >> 4) == 0xE;
+    static int sequenceBoundary(byte[] bytes, int from, int to, int end) {
+        int i = to;
+        while (i < end && i > from && (bytes[i] & 0xC0) == 0x80) {
+            i--;
+        }
+        return i;
     }
 
     /**
-     * is byte matches 11110xxx.
-     * @param b
-     * @return
+     * Counts non-ASCII bytes in [from, to) eight bytes at a time,
+     * stopping as soon as there are at least limit of them.
+     *
+     * @return number of non-ASCII bytes, or a number not less than limit
      */
-    static boolean isQuaternaryByteCharHead(byte b) {
-        return (signToUnsign(b) >> 3) == 0x1E;
+    static int countNonAscii(byte[] bytes, int from, int to, int limit) {
+        int count = 0;
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            long nonAscii = (long) LONG_VIEW.get(bytes, i) & NON_ASCII_MASK;
+            if (nonAscii != 0) {
+                count += Long.bitCount(nonAscii);
+                if (count >= limit) {
+                    return count;
+                }
+            }
+        }
+        for (; i < to && count < limit; i++) {
+            if (bytes[i] < 0) {
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
-     * is byte matches 10xxxxxx.
-     * @param b
-     * @return
+     * Fast path for the most common non-ASCII sequences (e.g. cyrillic letters): C2..DF 80..BF.
      */
-    static boolean isCharTail(byte b) {
-        // assert: b < 0
-        return b <= -64;
+    private static boolean isTwoByteSequence(byte head, byte tail) {
+        return head >= (byte) 0xC2 && head <= (byte) 0xDF && tail <= (byte) 0xBF;
+    }
+
+    private static byte[] createByteClasses() {
+        byte[] classes = new byte[256];
+        for (int b = 0; b < 256; b++) {
+            int byteClass;
+            if (b < 0x80) {
+                byteClass = ASCII;
+            } else if (b < 0x90) {
+                byteClass = TAIL_80_8F;
+            } else if (b < 0xA0) {
+                byteClass = TAIL_90_9F;
+            } else if (b < 0xC0) {
+                byteClass = TAIL_A0_BF;
+            } else if (b < 0xC2) {
+                byteClass = ILLEGAL; // overlong 2-byte forms
+            } else if (b < 0xE0) {
+                byteClass = HEAD_2;
+            } else if (b == 0xE0) {
+                byteClass = HEAD_E0;
+            } else if (b == 0xED) {
+                byteClass = HEAD_ED;
+            } else if (b < 0xF0) {
+                byteClass = HEAD_3;
+            } else if (b == 0xF0) {
+                byteClass = HEAD_F0;
+            } else if (b < 0xF4) {
+                byteClass = HEAD_4;
+            } else if (b == 0xF4) {
+                byteClass = HEAD_F4;
+            } else {
+                byteClass = ILLEGAL; // above U+10FFFF
+            }
+            classes[b] = (byte) byteClass;
+        }
+        return classes;
+    }
+
+    private static byte[] createTransitions() {
+        byte[] transitions = new byte[STATES_NUM * CLASSES_NUM];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = REJECT;
+        }
+
+        setTransition(transitions, ACCEPT, ASCII, ACCEPT);
+        setTransition(transitions, ACCEPT, HEAD_2, NEED_1);
+        setTransition(transitions, ACCEPT, HEAD_E0, AFTER_E0);
+        setTransition(transitions, ACCEPT, HEAD_3, NEED_2);
+        setTransition(transitions, ACCEPT, HEAD_ED, AFTER_ED);
+        setTransition(transitions, ACCEPT, HEAD_F0, AFTER_F0);
+        setTransition(transitions, ACCEPT, HEAD_4, NEED_3);
+        setTransition(transitions, ACCEPT, HEAD_F4, AFTER_F4);
+
+        for (int tail = TAIL_80_8F; tail <= TAIL_A0_BF; tail++) {
+            setTransition(transitions, NEED_1, tail, ACCEPT);
+            setTransition(transitions, NEED_2, tail, NEED_1);
+            setTransition(transitions, NEED_3, tail, NEED_2);
+        }
+        // E0 A0..BF: no overlong 3-byte forms
+        setTransition(transitions, AFTER_E0, TAIL_A0_BF, NEED_1);
+        // ED 80..9F: no surrogates
+        setTransition(transitions, AFTER_ED, TAIL_80_8F, NEED_1);
+        setTransition(transitions, AFTER_ED, TAIL_90_9F, NEED_1);
+        // F0 90..BF: no overlong 4-byte forms
+        setTransition(transitions, AFTER_F0, TAIL_90_9F, NEED_2);
+        setTransition(transitions, AFTER_F0, TAIL_A0_BF, NEED_2);
+        // F4 80..8F: not above U+10FFFF
+        setTransition(transitions, AFTER_F4, TAIL_80_8F, NEED_2);
+        return transitions;
+    }
+
+    private static void setTransition(byte[] transitions, int state, int byteClass, int nextState) {
+        transitions[state * CLASSES_NUM + byteClass] = (byte) nextState;
     }
 }
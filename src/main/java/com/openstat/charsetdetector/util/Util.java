@@ -34,6 +34,20 @@ public final class Util {
         return b & 0xff;
     }
 
+    /**
+     * Checks that the range [off, off + len) lies within the array.
+     *
+     * @param b bytes' array
+     * @param off offset of the range
+     * @param len length of the range
+     */
+    public static void checkRange(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + off + ", " + off + " + " + len + ") is out of bounds for length " + b.length);
+        }
+    }
+
     public static BufferedWriter createWriter(File file) {
         try {
             return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)));
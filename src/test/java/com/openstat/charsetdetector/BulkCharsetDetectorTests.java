@@ -0,0 +1,179 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class BulkCharsetDetectorTests {
+
+    private static final String TEXT = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог, "
+            + "он уважать себя заставил "
+            + "и лучше выдумать не мог.\n";
+    private static final Charset[] CHARSETS = {Charset.forName("UTF-8"), CyrillicCharset.WIN_1251.getNioCharset(),
+        CyrillicCharset.KOI8_R.getNioCharset(), CyrillicCharset.CP866.getNioCharset()};
+
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("bulk");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException {
+        delete(dir);
+    }
+
+    @Test(timeOut = 60000)
+    public void testMixedEncodings() throws Exception {
+        Map<Path, Charset> expected = new HashMap<Path, Charset>();
+        Path subdir = Files.createDirectory(dir.resolve("sub"));
+        for (int i = 0; i < 40; i++) {
+            Charset cs = CHARSETS[i % CHARSETS.length];
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j <= i * 50; j++) {
+                text.append(TEXT);
+            }
+            Path file = (i % 2 == 0 ? dir : subdir).resolve(i + ".txt");
+            Files.write(file, text.toString().getBytes(cs));
+            expected.put(file, cs);
+        }
+        // read to the end, so the truncated sequence is not taken as UTF-8 as CharsetDetector does not either
+        byte[] truncated = (TEXT + TEXT + "ё").getBytes(CHARSETS[0]);
+        truncated = Arrays.copyOf(truncated, truncated.length - 1);
+        Path truncatedFile = Files.write(dir.resolve("truncated.txt"), truncated);
+        expected.put(truncatedFile, new CharsetDetector().detectNioCharset(truncated));
+        assertFalse(CHARSETS[0].equals(expected.get(truncatedFile)));
+        Path missing = dir.resolve("missing.txt");
+
+        Collector collector = new Collector();
+        new BulkCharsetDetector(CharsetDetector.getCyrDetector(), 3, 4096, 2)
+                .detect(Arrays.asList(dir, missing), collector);
+        assertEquals(collector.detected, expected);
+        assertEquals(collector.failed, Collections.singletonList(missing));
+    }
+
+    @Test(timeOut = 60000)
+    public void testFailingListener() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Files.write(dir.resolve(i + ".txt"), TEXT.getBytes(CHARSETS[i % CHARSETS.length]));
+        }
+        final IllegalStateException failure = new IllegalStateException("Listener failed");
+        Collector listener = new Collector() {
+            @Override
+            public void detected(Path path, Charset charset, long bytesRead) {
+                throw failure;
+            }
+        };
+        try {
+            // a queue shorter than the list of files, so the walk would block on a dead worker
+            new BulkCharsetDetector(CharsetDetector.getCyrDetector(), 2, 4096, 1)
+                    .detect(Collections.singletonList(dir), listener);
+            fail("The failure of the listener is not rethrown");
+        } catch (IllegalStateException e) {
+            assertSame(e, failure);
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testInterrupt() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Files.write(dir.resolve(i + ".txt"), TEXT.getBytes(CHARSETS[i % CHARSETS.length]));
+        }
+        final CountDownLatch listenerCalled = new CountDownLatch(1);
+        final Collector listener = new Collector() {
+            @Override
+            public void detected(Path path, Charset charset, long bytesRead) {
+                listenerCalled.countDown();
+                try {
+                    // blocks the only worker until it is interrupted
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new BulkCharsetDetector(CharsetDetector.getCyrDetector(), 1, 4096, 1)
+                            .detect(Collections.singletonList(dir), listener);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        producer.start();
+        listenerCalled.await();
+        while (producer.getState() != Thread.State.WAITING) { // waits for space in the queue
+            Thread.sleep(10);
+        }
+        producer.interrupt();
+        producer.join();
+        assertTrue(thrown.get() instanceof InterruptedException, String.valueOf(thrown.get()));
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            DirectoryStream<Path> children = Files.newDirectoryStream(path);
+            try {
+                for (Path child : children) {
+                    delete(child);
+                }
+            } finally {
+                children.close();
+            }
+        }
+        Files.delete(path);
+    }
+
+    private static class Collector implements BulkCharsetDetector.Listener {
+
+        final Map<Path, Charset> detected = Collections.synchronizedMap(new HashMap<Path, Charset>());
+        final List<Path> failed = Collections.synchronizedList(new ArrayList<Path>());
+
+        @Override
+        public void detected(Path path, Charset charset, long bytesRead) {
+            detected.put(path, charset);
+        }
+
+        @Override
+        public void failed(Path path, IOException e) {
+            failed.add(path);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class CachingCharsetDetectorTests {
+
+    private static final String TEXT = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог, "
+            + "он уважать себя заставил "
+            + "и лучше выдумать не мог.";
+
+    private final CharsetDetector detector = new CharsetDetector();
+
+    @Test
+    public void testHitsGiveDetectorResult() {
+        CachingCharsetDetector cache = new CachingCharsetDetector();
+        for (int round = 0; round < 2; round++) {
+            for (Charset cs : charsets()) {
+                for (int end = 0; end <= TEXT.length(); end += 3) {
+                    byte[] b = TEXT.substring(0, end).getBytes(cs);
+                    assertEquals(cache.detectNioCharset(b), detector.detectNioCharset(b), cs + " " + end);
+                }
+            }
+            long inputsNum = (TEXT.length() / 3 + 1) * charsets().length;
+            assertEquals(cache.getHits() + cache.getMisses(), inputsNum * (round + 1));
+        }
+        // short prefixes are the same in UTF-8 and one-byte charsets
+        assertTrue(cache.getMisses() < cache.getHits(), cache.getMisses() + " " + cache.getHits());
+        assertEquals(cache.getEvictions(), 0);
+    }
+
+    @Test
+    public void testSameKeyInArrayAndBuffers() {
+        CachingCharsetDetector cache = new CachingCharsetDetector();
+        byte[] b = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+        byte[] padded = new byte[b.length + 5];
+        System.arraycopy(b, 0, padded, 3, b.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length + 2);
+        direct.position(1);
+        direct.put(b).flip().position(1);
+
+        assertEquals(CachingCharsetDetector.hash(padded, 3, b.length), CachingCharsetDetector.hash(b, 0, b.length));
+        assertEquals(CachingCharsetDetector.hash(direct), CachingCharsetDetector.hash(b, 0, b.length));
+        assertEquals(CachingCharsetDetector.hash(ByteBuffer.wrap(padded, 3, b.length)),
+                CachingCharsetDetector.hash(b, 0, b.length));
+        assertEquals(CachingCharsetDetector.first(direct), CachingCharsetDetector.first(b, 0, b.length));
+        assertEquals(CachingCharsetDetector.last(direct), CachingCharsetDetector.last(b, 0, b.length));
+        assertEquals(CachingCharsetDetector.last(ByteBuffer.wrap(padded, 3, b.length)),
+                CachingCharsetDetector.last(b, 0, b.length));
+
+        Charset expected = detector.detectNioCharset(b);
+        assertEquals(cache.detect(direct), expected);
+        assertEquals(direct.position(), 1);
+        assertEquals(cache.detect(padded, 3, b.length, new DetectionContext()), expected);
+        assertEquals(cache.detect(ByteBuffer.wrap(b), new DetectionContext()), expected);
+        assertEquals(cache.getMisses(), 1);
+        assertEquals(cache.getHits(), 2);
+    }
+
+    @Test
+    public void testCollidingHashesAreToldByFingerprint() {
+        CachingCharsetDetector cache = new CachingCharsetDetector();
+        byte[] a = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+        byte[] b = a.clone();
+        b[0] ^= 1;
+        byte[] c = a.clone();
+        c[c.length - 1] ^= 1;
+        long hash = CachingCharsetDetector.hash(a, 0, a.length);
+        Charset koi8 = CyrillicCharset.KOI8_R.getNioCharset();
+
+        cache.store(hash, a.length, CachingCharsetDetector.first(a, 0, a.length),
+                CachingCharsetDetector.last(a, 0, a.length), koi8);
+        // the hash of the other inputs is forged to collide
+        assertNull(cache.lookup(hash, b.length, CachingCharsetDetector.first(b, 0, b.length),
+                CachingCharsetDetector.last(b, 0, b.length)));
+        assertNull(cache.lookup(hash, c.length, CachingCharsetDetector.first(c, 0, c.length),
+                CachingCharsetDetector.last(c, 0, c.length)));
+        assertEquals(cache.lookup(hash, a.length, CachingCharsetDetector.first(a, 0, a.length),
+                CachingCharsetDetector.last(a, 0, a.length)), koi8);
+
+        byte[] shortInput = {1, 2, 3};
+        assertEquals(CachingCharsetDetector.first(shortInput, 0, 3), 0x010203);
+        assertEquals(CachingCharsetDetector.last(shortInput, 0, 3), 0x010203);
+    }
+
+    @Test
+    public void testBoundedByEviction() {
+        CachingCharsetDetector cache = new CachingCharsetDetector(detector, 10, 64);
+        assertEquals(cache.getCapacity(), 16);
+        String[] words = TEXT.split(" ");
+        int inputsNum = 0;
+        for (Charset cs : charsets()) {
+            for (String first : words) {
+                for (String second : words) {
+                    byte[] b = (first + " " + second).getBytes(cs);
+                    assertEquals(cache.detectNioCharset(b), detector.detectNioCharset(b));
+                    inputsNum++;
+                }
+            }
+        }
+        assertEquals(cache.getHits() + cache.getMisses(), inputsNum);
+        assertTrue(cache.getEvictions() >= cache.getMisses() - cache.getCapacity());
+        assertTrue(cache.getEvictions() > 0);
+
+        cache.clear();
+        byte[] b = words[0].getBytes(charsets()[1]);
+        long misses = cache.getMisses();
+        cache.detectNioCharset(b);
+        cache.detectNioCharset(b);
+        assertEquals(cache.getMisses(), misses + 1);
+    }
+
+    @Test
+    public void testLongInputsBypassCache() {
+        CachingCharsetDetector cache = new CachingCharsetDetector(detector, 16, 8);
+        byte[] b = TEXT.getBytes(CyrillicCharset.CP866.getNioCharset());
+        assertEquals(cache.detectNioCharset(b), detector.detectNioCharset(b));
+        assertEquals(cache.detect(ByteBuffer.wrap(b)), detector.detectNioCharset(b));
+        assertEquals(cache.getHits() + cache.getMisses(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWrongMaxLength() {
+        new CachingCharsetDetector(detector, 16, CachingCharsetDetector.MAX_LENGTH_LIMIT + 1);
+    }
+
+    private static Charset[] charsets() {
+        CyrillicCharset[] cyrillic = CyrillicCharset.values();
+        Charset[] charsets = new Charset[cyrillic.length + 1];
+        charsets[0] = Charset.forName("UTF-8");
+        for (CyrillicCharset cs : cyrillic) {
+            charsets[cs.ordinal() + 1] = cs.getNioCharset();
+        }
+        return charsets;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class ConcurrentDetectionTests {
+
+    private static final int THREADS_NUM = 8;
+    private static final int ROUNDS_NUM = 20;
+    private static final int WORDS_IN_PHRASE = 3;
+
+    @Test
+    public void testSharedDetector() throws Exception {
+        final List<byte[]> inputs = readInputs("pushkin.txt", "kocubinski.txt");
+        final CharsetDetector detector = new CharsetDetector();
+        final Charset[] expected = new Charset[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            expected[i] = detector.detectNioCharset(inputs.get(i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS_NUM);
+        try {
+            List<Future<Integer>> mismatches = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS_NUM; t++) {
+                final boolean ownContext = t % 2 == 0;
+                final int shift = t * inputs.size() / THREADS_NUM;
+                mismatches.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        DetectionContext ctx = new DetectionContext();
+                        int mismatchesNum = 0;
+                        for (int round = 0; round < ROUNDS_NUM; round++) {
+                            for (int j = 0; j < inputs.size(); j++) {
+                                int i = (j + shift) % inputs.size();
+                                byte[] b = inputs.get(i);
+                                Charset detected = ownContext
+                                        ? detector.detect(b, 0, b.length, ctx)
+                                        : detector.detectNioCharset(b);
+                                if (!detected.equals(expected[i])) {
+                                    mismatchesNum++;
+                                }
+                            }
+                        }
+                        return mismatchesNum;
+                    }
+                }));
+            }
+            for (Future<Integer> mismatchesNum : mismatches) {
+                assertEquals(mismatchesNum.get().intValue(), 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedCache() throws Exception {
+        final List<byte[]> inputs = readInputs("pushkin.txt");
+        CharsetDetector detector = new CharsetDetector();
+        // small enough to evict concurrently
+        final CachingCharsetDetector cache = new CachingCharsetDetector(detector, 256, 64);
+        final Charset[] expected = new Charset[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            expected[i] = detector.detectNioCharset(inputs.get(i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS_NUM);
+        try {
+            List<Future<Integer>> mismatches = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS_NUM; t++) {
+                final int shift = t * inputs.size() / THREADS_NUM;
+                mismatches.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int mismatchesNum = 0;
+                        for (int round = 0; round < ROUNDS_NUM; round++) {
+                            for (int j = 0; j < inputs.size(); j++) {
+                                int i = (j + shift) % inputs.size();
+                                if (!cache.detectNioCharset(inputs.get(i)).equals(expected[i])) {
+                                    mismatchesNum++;
+                                }
+                            }
+                        }
+                        return mismatchesNum;
+                    }
+                }));
+            }
+            for (Future<Integer> mismatchesNum : mismatches) {
+                assertEquals(mismatchesNum.get().intValue(), 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    private static List<byte[]> readInputs(String... textFiles) throws IOException {
+        Charset[] charsets = new Charset[CyrillicCharset.values().length + 1];
+        charsets[0] = Charset.forName("UTF-8");
+        for (CyrillicCharset cs : CyrillicCharset.values()) {
+            charsets[cs.ordinal() + 1] = cs.getNioCharset();
+        }
+
+        List<byte[]> inputs = new ArrayList<byte[]>();
+        for (String textFile : textFiles) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    ConcurrentDetectionTests.class.getResourceAsStream("/benchmarks/" + textFile), "UTF-8"));
+            List<String> words = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String word : line.split("\\s+")) {
+                    if (word.length() > 0) {
+                        words.add(word);
+                    }
+                }
+            }
+            reader.close();
+
+            for (int i = 0; i + WORDS_IN_PHRASE <= words.size(); i += WORDS_IN_PHRASE) {
+                String phrase = words.get(i) + " " + words.get(i + 1) + " " + words.get(i + 2);
+                inputs.add(phrase.getBytes(charsets[i % charsets.length]));
+            }
+        }
+        return inputs;
+    }
+}
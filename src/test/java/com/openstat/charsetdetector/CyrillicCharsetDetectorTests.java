@@ -16,7 +16,16 @@
 package com.openstat.charsetdetector;
 
 import org.testng.annotations.Test;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
 import static org.testng.Assert.*;
 
 @Test
@@ -93,7 +102,7 @@ public final class CyrillicCharsetDetectorTests {
 
         String str = "длинношеее";
 
-        for (CyrillicCharset cs : CyrillicCharset.values()) {
+        for (CyrillicCharset cs : CyrillicCharsetDetector.DEFAULT_CANDIDATES) {
             byte[] b = str.getBytes(cs.getNioCharset());
             assertEquals(new String(b, detector.detectCyrillicCharset(b).getNioCharset()), str);
         }
@@ -120,4 +129,339 @@ public final class CyrillicCharsetDetectorTests {
 
         assertEquals(detector.detectCyrillicCharset(b), CyrillicCharset.KOI8_R);
     }
+
+    @Test
+    public void testDetectEncodingInRange() {
+        CyrillicCharsetDetector detector = CharsetDetector.getCyrDetector();
+
+        for (CyrillicCharset cs : CyrillicCharsetDetector.DEFAULT_CANDIDATES) {
+            byte[] phrase = "как жрать суши".getBytes(cs.getNioCharset());
+            byte[] b = new byte[phrase.length + 6];
+            b[0] = (byte) 0xFF;
+            b[1] = (byte) 0xC0;
+            System.arraycopy(phrase, 0, b, 3, phrase.length);
+            b[b.length - 1] = (byte) 0xC0;
+
+            assertEquals(detector.detect(b, 3, phrase.length), detector.detectCyrillicCharset(phrase));
+            assertEquals(detector.detect(b, 3, phrase.length), cs == CyrillicCharset.KOI8_U
+                    ? CyrillicCharset.KOI8_R : cs);
+        }
+    }
+
+    @Test
+    public void testDetectEncodingInBuffer() {
+        CyrillicCharsetDetector detector = CharsetDetector.getCyrDetector();
+
+        for (CyrillicCharset cs : CyrillicCharset.values()) {
+            byte[] phrase = "мой+самолет+был".getBytes(cs.getNioCharset());
+            CyrillicCharset expected = detector.detectCyrillicCharset(phrase);
+
+            ByteBuffer heap = ByteBuffer.allocate(phrase.length + 2);
+            heap.put((byte) 0xC0).put(phrase).put((byte) 0xC0);
+            heap.position(1).limit(phrase.length + 1);
+            assertEquals(detector.detect(heap.slice()), expected);
+            assertEquals(detector.detect(heap), expected);
+            assertEquals(heap.position(), 1);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(phrase.length + 2);
+            direct.put((byte) 0xC0).put(phrase).put((byte) 0xC0);
+            direct.position(1).limit(phrase.length + 1);
+            assertEquals(detector.detect(direct), expected);
+            assertEquals(direct.position(), 1);
+        }
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testDetectEncodingOutOfRange() {
+        CharsetDetector.getCyrDetector().detect(new byte[4], 2, 3);
+    }
+
+    @Test
+    public void testDefaultModelIsShared() {
+        assertSame(CharsetDetector.getCyrDetector().getModel(), CharsetDetector.getCyrDetector().getModel());
+        assertSame(CharsetDetector.getCyrDetector().getModel(), DetectionModel.getDefault());
+    }
+
+    @Test
+    public void testEarlyExit() {
+        CyrillicCharsetDetector detector = new CyrillicCharsetDetector(DetectionModel.getDefault(), 16);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("Мой дядя самых честных правил, ")
+                    .append("когда не в шутку занемог. ");
+        }
+        for (CyrillicCharset cs : new CyrillicCharset[] {CyrillicCharset.WIN_1251, CyrillicCharset.KOI8_R,
+                CyrillicCharset.CP866}) {
+            byte[] b = text.toString().getBytes(cs.getNioCharset());
+            DetectionContext ctx = new DetectionContext();
+            assertEquals(detector.detect(b, 0, b.length, ctx), cs);
+            assertTrue(ctx.getBytesConsumed() < b.length);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+            direct.put(b).flip();
+            assertEquals(detector.detect(direct, ctx), cs);
+            assertTrue(ctx.getBytesConsumed() < b.length);
+        }
+
+        byte[] b = "как жрать суши".getBytes(Charset.forName("windows-1251"));
+        DetectionContext ctx = new DetectionContext();
+        assertEquals(detector.detect(b, 0, b.length, ctx), CyrillicCharset.WIN_1251);
+        assertEquals(ctx.getBytesConsumed(), b.length);
+    }
+
+    @Test
+    public void testAllocation() {
+        final byte[] b = "как жрать суши".getBytes(Charset.forName("windows-1251"));
+        final ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        final CharsetDetector detector = new CharsetDetector();
+        final DetectionContext ctx = new DetectionContext();
+        // a reused context, even the block for direct buffers is allocated only once
+        assertTrue(allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                detector.detect(b, 0, b.length, ctx);
+                detector.detect(direct, ctx);
+            }
+        }) < 8);
+        // the overloads without a context reuse one per thread
+        final CyrillicCharsetDetector cyrDetector = CharsetDetector.getCyrDetector();
+        assertTrue(allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                detector.detectNioCharset(b);
+                detector.detect(direct);
+                cyrDetector.detect(b, 0, b.length);
+                cyrDetector.detect(direct);
+            }
+        }) < 8);
+        // a fresh context is small, the block of direct buffers is not allocated for arrays
+        assertTrue(allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                detector.detect(b, 0, b.length, new DetectionContext());
+            }
+        }) < 1024);
+    }
+
+    @Test
+    public void testFusedScan() {
+        String text = "Мой дядя самых честных правил, "
+                + "когда не в шутку занемог, "
+                + "он уважать себя заставил. ";
+        String ascii = "The quick brown fox jumps over the lazy dog. ";
+        Charset utf8 = Charset.forName("UTF-8");
+        Charset win1251 = Charset.forName("windows-1251");
+        byte[][] inputs = new byte[][] {
+            concat(repeat(text, 100).getBytes(utf8)),
+            concat(repeat(text, 100).getBytes(win1251)),
+            concat(repeat(ascii, 300).getBytes(utf8), text.getBytes(win1251)),
+            concat(repeat(text, 100).getBytes(utf8), text.getBytes(Charset.forName("KOI8-R"))),
+            concat(repeat(ascii, 100).getBytes(utf8), "дядя".getBytes(utf8), repeat(ascii, 100).getBytes(utf8),
+                    repeat(text, 10).getBytes(Charset.forName("Cp866"))),
+            Arrays.copyOf(repeat(text, 100).getBytes(utf8), 100 * text.getBytes(utf8).length - 1),
+            repeat(ascii, 300).getBytes(utf8)
+        };
+        CyrillicCharsetDetector cyrDetector = CharsetDetector.getCyrDetector();
+        CharsetDetector detector = new CharsetDetector();
+        DetectionContext ctx = new DetectionContext();
+        for (byte[] b : inputs) {
+            assertTrue(b.length > DetectionContext.BLOCK_SIZE);
+            Charset expected = UTF8CharsetDetector.isUTF8(b)
+                    ? utf8 : cyrDetector.detect(b, 0, b.length).getNioCharset();
+            assertEquals(detector.detectNioCharset(b), expected);
+            assertEquals(detector.detect(concat(new byte[3], b), 3, b.length, ctx), expected);
+            assertEquals(ctx.getBytesConsumed(), b.length);
+            assertEquals(detector.detect(ByteBuffer.wrap(concat(new byte[5], b), 5, b.length)), expected);
+            ByteBuffer direct = ByteBuffer.allocateDirect(b.length + 1);
+            direct.position(1);
+            direct.put(b).flip().position(1);
+            assertEquals(detector.detect(direct, ctx), expected);
+            assertEquals(direct.position(), 1);
+        }
+    }
+
+    @Test
+    public void testDetectAndDecode() throws Exception {
+        String text = "Мой дядя самых честных правил, "
+                + "когда не в шутку занемог 😀 ";
+        CharsetDetector detector = new CharsetDetector();
+        DetectionContext ctx = new DetectionContext();
+        Charset[] charsets = new Charset[] {Charset.forName("UTF-8"), Charset.forName("windows-1251"),
+            Charset.forName("KOI8-R"), Charset.forName("KOI8-U"), Charset.forName("Cp866")};
+        for (Charset cs : charsets) {
+            for (String s : new String[] {"", "ок", text, repeat(text, 150)}) {
+                byte[] b = concat(new byte[1], s.getBytes(cs));
+                int len = b.length - 1;
+                String expected = new String(b, 1, len, detector.detect(b, 1, len));
+                assertEquals(detector.detectAndDecode(b, 1, len), expected);
+
+                StringBuilder sb = new StringBuilder(">");
+                assertEquals(detector.detectAndDecode(b, 1, len, sb, ctx), detector.detect(b, 1, len));
+                assertEquals(sb.toString(), ">" + expected);
+                StringWriter writer = new StringWriter();
+                detector.detectAndDecode(b, 1, len, writer, ctx);
+                assertEquals(writer.toString(), expected);
+                StringBuffer generic = new StringBuffer();
+                detector.detectAndDecode(b, 1, len, generic, ctx);
+                assertEquals(generic.toString(), expected);
+
+                CharBuffer heap = CharBuffer.allocate(len + 2);
+                heap.put('>');
+                detector.detectAndDecode(b, 1, len, heap, ctx);
+                assertEquals(heap.flip().toString(), ">" + expected);
+                CharBuffer direct = ByteBuffer.allocateDirect(2 * len).asCharBuffer();
+                detector.detectAndDecode(b, 1, len, (Appendable) direct, ctx);
+                assertEquals(direct.flip().toString(), expected);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeSampledUTF8() {
+        CharsetDetector detector = new CharsetDetector(CharsetDetector.getCyrDetector(), new SamplingStrategy(64, 2));
+        byte[] b = concat(repeat("дядя ", 20).getBytes(Charset.forName("UTF-8")), new byte[] {(byte) 0xFF},
+                repeat("дядя ", 20).getBytes(Charset.forName("UTF-8")));
+        assertEquals(detector.detect(b, 0, b.length), Charset.forName("UTF-8"));
+        CharBuffer out = CharBuffer.allocate(b.length);
+        detector.detectAndDecode(b, 0, b.length, out, new DetectionContext());
+        assertEquals(out.flip().toString(), new String(b, Charset.forName("UTF-8")));
+    }
+
+    @Test(expectedExceptions = BufferOverflowException.class)
+    public void testDecodeOverflow() {
+        byte[] b = "дядя".getBytes(Charset.forName("windows-1251"));
+        new CharsetDetector().detectAndDecode(b, 0, b.length, CharBuffer.allocate(3), new DetectionContext());
+    }
+
+    @Test
+    public void testDecodeTables() {
+        byte[] b = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            b[i] = (byte) i;
+        }
+        for (CyrillicCharset cs : CyrillicCharset.values()) {
+            char[] chars = new char[256];
+            cs.decode(b, 0, 256, chars, 0);
+            assertEquals(new String(chars), new String(b, cs.getNioCharset()));
+        }
+    }
+
+    @Test
+    public void testAllCandidates() {
+        String text = "Мой дядя самых честных правил, "
+                + "когда не в шутку занемог, "
+                + "он уважать себя заставил "
+                + "и лучше выдумать не мог.";
+        CyrillicCharsetDetector detector = new CyrillicCharsetDetector(DetectionModel.getDefault(), 0,
+                EnumSet.allOf(CyrillicCharset.class));
+        assertEquals(detector.getCandidates(), EnumSet.allOf(CyrillicCharset.class));
+        for (CyrillicCharset cs : CyrillicCharset.values()) {
+            byte[] b = text.getBytes(cs.getNioCharset());
+            CyrillicCharset expected = cs == CyrillicCharset.KOI8_U ? CyrillicCharset.KOI8_R : cs;
+            assertEquals(detector.detect(b, 0, b.length), expected);
+        }
+    }
+
+    @Test
+    public void testChosenCandidates() {
+        Set<CyrillicCharset> candidates = EnumSet.of(CyrillicCharset.CP866, CyrillicCharset.KOI8_R);
+        CyrillicCharsetDetector detector = new CyrillicCharsetDetector(DetectionModel.getDefault(), 0, candidates);
+        assertEquals(detector.getCandidates(), candidates);
+
+        byte[] b = "как жрать суши".getBytes(CyrillicCharset.CP866.getNioCharset());
+        assertEquals(detector.detect(b, 0, b.length), CyrillicCharset.CP866);
+        b = "как жрать суши".getBytes(CyrillicCharset.WIN_1251.getNioCharset());
+        assertTrue(candidates.contains(detector.detect(b, 0, b.length)));
+        // the first candidate is the most popular one
+        assertEquals(detector.detect(b, 0, 2), CyrillicCharset.KOI8_R);
+
+        DetectionResult result = detector.detect(b, 0, b.length, new DetectionResult());
+        assertEquals(result.getCandidatesNum(), 2);
+        assertTrue(candidates.contains(result.getCyrillicCharset(1)));
+        assertEquals(result.getConfidence(0) + result.getConfidence(1), 1, 1e-9);
+        // a context reused by a detector with other candidates
+        assertEquals(CharsetDetector.getCyrDetector().detect(b, 0, b.length, result.context()),
+                CyrillicCharset.WIN_1251);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoCandidates() {
+        new CyrillicCharsetDetector(DetectionModel.getDefault(), 0, EnumSet.noneOf(CyrillicCharset.class));
+    }
+
+    @Test
+    public void testPrefilterKeepsResults() {
+        String text = "Мой дядя самых честных правил, "
+                + "когда не в шутку занемог, "
+                + "Ёлка ёж, їжак і ґанок є. ";
+        CyrillicCharsetDetector[] detectors = {CharsetDetector.getCyrDetector(),
+            new CyrillicCharsetDetector(DetectionModel.getDefault(), 0, EnumSet.allOf(CyrillicCharset.class))};
+        DetectionContext ctx = new DetectionContext();
+        DetectionResult result = new DetectionResult();
+        Random random = new Random(42);
+        for (int n = 0; n < 3000; n++) {
+            CyrillicCharset cs = CyrillicCharset.values()[n % CyrillicCharset.values().length];
+            byte[] b = repeat(text, 1 + n % 3).getBytes(cs.getNioCharset());
+            // cut a random piece and spoil some bytes, so that charsets tie and differ in every way
+            int off = random.nextInt(b.length);
+            int len = random.nextInt(b.length - off + 1);
+            for (int i = random.nextInt(4); i > 0; i--) {
+                b[random.nextInt(b.length)] = (byte) random.nextInt(256);
+            }
+            for (CyrillicCharsetDetector detector : detectors) {
+                // the result scans all the candidates in full
+                assertEquals(detector.detect(b, off, len, ctx),
+                        detector.detect(b, off, len, result).getCyrillicCharset(0), cs + " " + off + " " + len);
+            }
+        }
+    }
+
+    /**
+     * @return average number of bytes allocated by the current thread per call after a warm-up
+     */
+    private static long allocatedBytesPerCall(Runnable call) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int calls = 10000;
+        for (int i = 0; i < calls; i++) {
+            call.run();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            call.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / calls;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int len = 0;
+        for (byte[] part : parts) {
+            len += part.length;
+        }
+        byte[] result = new byte[len];
+        int off = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, off, part.length);
+            off += part.length;
+        }
+        return result;
+    }
+
+    @Test
+    public void testDecodeTable() {
+        for (int b = 0; b < 256; b++) {
+            for (CyrillicCharset cs : CyrillicCharset.values()) {
+                assertEquals((byte) (CyrillicCharset.DECODE_TABLE[b] >> (cs.ordinal() * 8)), cs.charToIndex((byte) b));
+            }
+        }
+    }
 }
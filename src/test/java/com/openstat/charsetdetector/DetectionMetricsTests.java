@@ -0,0 +1,180 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class DetectionMetricsTests {
+
+    private static final String TEXT = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог, "
+            + "он уважать себя заставил "
+            + "и лучше выдумать не мог.";
+
+    private final CharsetDetector plain = new CharsetDetector();
+
+    @Test
+    public void testCounters() {
+        DetectionMetrics metrics = new DetectionMetrics();
+        CharsetDetector detector = new CharsetDetector(CharsetDetector.getCyrDetector(), null, metrics);
+        byte[] utf8 = TEXT.getBytes(Charset.forName("UTF-8"));
+        byte[] koi8 = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+        byte[] tooShort = {(byte) 0xE0, (byte) 0xE1};
+
+        assertEquals(detector.detectNioCharset(utf8), plain.detectNioCharset(utf8));
+        assertEquals(detector.detect(ByteBuffer.wrap(koi8)), plain.detectNioCharset(koi8));
+        assertEquals(detector.detect(tooShort, 0, 2, new DetectionContext()), plain.detectNioCharset(tooShort));
+        detector.detect(koi8, 0, koi8.length, new DetectionResult());
+
+        assertEquals(metrics.getCalls(), 4);
+        assertEquals(metrics.getBytesScanned(), utf8.length + 2 * koi8.length + 2);
+        assertEquals(metrics.getUTF8Hits(), 1);
+        assertEquals(metrics.getShortInputs(), 1);
+        long[] decisions = metrics.getDecisions();
+        assertEquals(metrics.getCharsetNames().length, decisions.length);
+        assertEquals(decisions[0], 1);
+        assertEquals(decisions[plain.detectNioCharset(koi8).equals(CyrillicCharset.KOI8_R.getNioCharset())
+                ? CyrillicCharset.KOI8_R.ordinal() + 1 : CyrillicCharset.KOI8_U.ordinal() + 1], 2);
+        assertEquals(decisions[CyrillicCharset.values()[0].ordinal() + 1], 1);
+        long histogramSum = 0;
+        for (long count : metrics.getLatencyHistogram()) {
+            histogramSum += count;
+        }
+        assertEquals(histogramSum, 4);
+        assertTrue(metrics.getLatencyMedianNanos() <= metrics.getLatency99Nanos());
+        assertTrue(metrics.getLatency99Nanos() > 0);
+
+        metrics.reset();
+        assertEquals(metrics.getCalls(), 0);
+        assertEquals(metrics.getLatency99Nanos(), 0);
+    }
+
+    @Test
+    public void testEarlyExit() {
+        DetectionMetrics metrics = new DetectionMetrics();
+        CyrillicCharsetDetector cyrDetector =
+                new CyrillicCharsetDetector(CharsetDetector.getCyrDetector().getModel(), 8);
+        CharsetDetector detector = new CharsetDetector(cyrDetector, null, metrics);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append(TEXT).append(' ');
+        }
+        byte[] b = text.toString().getBytes(CyrillicCharset.WIN_1251.getNioCharset());
+        DetectionContext ctx = new DetectionContext();
+        assertEquals(detector.detect(b, 0, b.length, ctx), CyrillicCharset.WIN_1251.getNioCharset());
+        assertEquals(detector.detect(b, 0, b.length, ctx), CyrillicCharset.WIN_1251.getNioCharset());
+
+        assertEquals(metrics.getCalls(), 2);
+        assertTrue(metrics.getBytesScanned() < 2 * b.length);
+    }
+
+    @Test
+    public void testCyrillicDetector() {
+        DetectionMetrics metrics = new DetectionMetrics();
+        DetectionMetrics cyrMetrics = new DetectionMetrics();
+        CyrillicCharsetDetector cyrDetector = new CyrillicCharsetDetector(CharsetDetector.getCyrDetector().getModel(),
+                0, CyrillicCharsetDetector.DEFAULT_CANDIDATES, cyrMetrics);
+        byte[] koi8 = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+
+        assertEquals(cyrDetector.detect(koi8, 0, koi8.length), CharsetDetector.getCyrDetector().detect(koi8, 0,
+                koi8.length));
+        assertEquals(cyrDetector.detect(ByteBuffer.wrap(koi8, 0, 2)), cyrDetector.getCandidates().iterator().next());
+        assertEquals(cyrMetrics.getCalls(), 2);
+        assertEquals(cyrMetrics.getBytesScanned(), koi8.length + 2);
+        assertEquals(cyrMetrics.getShortInputs(), 1);
+
+        // the scans done for a CharsetDetector are its detections
+        new CharsetDetector(cyrDetector, null, metrics).detectNioCharset(koi8);
+        new CharsetDetector(cyrDetector).detectNioCharset(koi8);
+        assertEquals(metrics.getCalls(), 1);
+        assertEquals(cyrMetrics.getCalls(), 2);
+    }
+
+    @Test
+    public void testUTF8Check() {
+        DetectionMetrics metrics = new DetectionMetrics();
+        byte[] utf8 = TEXT.getBytes(Charset.forName("UTF-8"));
+        byte[] koi8 = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+
+        assertTrue(UTF8CharsetDetector.isUTF8(utf8, 0, utf8.length, metrics));
+        assertFalse(UTF8CharsetDetector.isUTF8(ByteBuffer.wrap(koi8), metrics));
+        assertTrue(UTF8CharsetDetector.isUTF8(utf8, 0, utf8.length, null));
+
+        assertEquals(metrics.getCalls(), 2);
+        assertEquals(metrics.getBytesScanned(), utf8.length + koi8.length);
+        assertEquals(metrics.getUTF8Hits(), 1);
+        assertEquals(metrics.getDecisions()[0], 1);
+    }
+
+    @Test
+    public void testCacheHits() {
+        DetectionMetrics metrics = new DetectionMetrics();
+        CachingCharsetDetector detector = new CachingCharsetDetector(
+                new CharsetDetector(CharsetDetector.getCyrDetector(), null, metrics), 16, 1024);
+        byte[] koi8 = TEXT.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+
+        Charset charset = detector.detectNioCharset(koi8);
+        assertEquals(detector.detect(koi8, 0, koi8.length), charset);
+        assertEquals(detector.detect(koi8, 0, koi8.length, new DetectionContext()), charset);
+        assertEquals(detector.detect(ByteBuffer.wrap(koi8)), charset);
+        assertEquals(detector.detect(ByteBuffer.wrap(koi8), new DetectionContext()), charset);
+
+        assertEquals(detector.getHits(), 4);
+        assertEquals(metrics.getCalls(), 5);
+        assertEquals(metrics.getCacheHits(), 4);
+        assertEquals(metrics.getBytesScanned(), koi8.length);
+        long decided = 0;
+        for (long count : metrics.getDecisions()) {
+            decided += count;
+        }
+        assertEquals(decided, 5);
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        DetectionMetrics metrics = new DetectionMetrics();
+        String name = DetectionMetrics.DEFAULT_OBJECT_NAME + ",name=test";
+        metrics.register(name);
+        try {
+            new CharsetDetector(CharsetDetector.getCyrDetector(), null, metrics)
+                    .detectNioCharset(TEXT.getBytes(Charset.forName("UTF-8")));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(server.getAttribute(new ObjectName(name), "Calls"), 1L);
+            assertEquals(server.getAttribute(new ObjectName(name), "UTF8Hits"), 1L);
+        } finally {
+            metrics.unregister(name);
+        }
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        assertEquals(DetectionMetrics.latencyBucket(0), 0);
+        assertEquals(DetectionMetrics.latencyBucket(1), 1);
+        assertEquals(DetectionMetrics.latencyBucket(1000), 10);
+        assertEquals(DetectionMetrics.latencyBucket(1023), 10);
+        assertEquals(DetectionMetrics.latencyBucket(1024), 11);
+        assertEquals(DetectionMetrics.latencyBucket(Long.MAX_VALUE), DetectionMetrics.LATENCY_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class DetectionModelTests {
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        DetectionModel model = DetectionModel.getDefault();
+        byte[] bytes = write(model);
+
+        DetectionModel fromStream = DetectionModel.read(new ByteArrayInputStream(bytes));
+        assertTrue(Arrays.equals(write(fromStream), bytes));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 1);
+        direct.put((byte) 0).put(bytes).position(1);
+        DetectionModel fromBuffer = DetectionModel.read(direct);
+        assertTrue(Arrays.equals(write(fromBuffer), bytes));
+        assertEquals(direct.position(), 1);
+    }
+
+    @Test
+    public void testMap() throws IOException {
+        File file = File.createTempFile("model", ".data");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            DetectionModel.getDefault().write(os);
+            os.close();
+
+            CyrillicCharsetDetector detector = new CyrillicCharsetDetector(DetectionModel.map(file));
+            CyrillicCharsetDetector defaultDetector = CharsetDetector.getCyrDetector();
+            for (CyrillicCharset cs : CyrillicCharset.values()) {
+                byte[] b = "длинношеее r[]=Регби-лига".getBytes(cs.getNioCharset());
+                assertEquals(detector.detectCyrillicCharset(b), defaultDetector.detectCyrillicCharset(b));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMapStoredWindowScores() throws IOException {
+        DetectionModel model = DetectionModel.getDefault().withWindowScores();
+        byte[] bytes = write(model);
+        assertEquals(ByteBuffer.wrap(bytes).getInt(4), 2);
+        assertTrue(Arrays.equals(write(DetectionModel.read(new ByteArrayInputStream(bytes))), bytes));
+        File file = File.createTempFile("model", ".data");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            os.write(bytes);
+            os.close();
+
+            DetectionModel mapped = DetectionModel.map(file);
+            // scanned straight from the mapped file
+            assertTrue(mapped.windowScores().isDirect());
+            assertEquals(mapped.windowScores(), DetectionModel.getDefault().windowScores());
+            CyrillicCharsetDetector detector = new CyrillicCharsetDetector(mapped);
+            CyrillicCharsetDetector defaultDetector = CharsetDetector.getCyrDetector();
+            for (CyrillicCharset cs : CyrillicCharsetDetector.DEFAULT_CANDIDATES) {
+                byte[] b = "длинношеее r[]=Регби-лига".getBytes(cs.getNioCharset());
+                assertEquals(detector.detectCyrillicCharset(b), defaultDetector.detectCyrillicCharset(b));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testBuiltModelStoresWindowScores() throws IOException {
+        int[] frequencies = new int[CyrillicCharset.CHARS_NUM * CyrillicCharset.CHARS_NUM];
+        frequencies[CyrillicCharsetDetector.digramIndex(1, 2)] = 5;
+        BitSet trigrams = new BitSet();
+        trigrams.set(CyrillicCharsetDetector.trigramIndex(1, 2, 3));
+        DetectionModel model = new DetectionModel(new BitSet(), trigrams, frequencies);
+        byte[] bytes = write(model);
+        assertEquals(ByteBuffer.wrap(bytes).getInt(4), 2);
+        DetectionModel read = DetectionModel.read(ByteBuffer.wrap(bytes));
+        assertEquals(read.windowScores().get(DetectionModel.scoreSlot(1, 2, 3)),
+                5 << DetectionModel.FREQUENCY_SHIFT | DetectionModel.LETTERS | DetectionModel.VALID_TRIGRAM);
+        assertEquals(read.windowScores(), model.windowScores());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testChecksumMismatch() throws IOException {
+        byte[] bytes = write(DetectionModel.getDefault());
+        bytes[bytes.length / 2] ^= 1;
+        DetectionModel.read(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMappedChecksumMismatch() throws IOException {
+        byte[] bytes = write(DetectionModel.getDefault());
+        bytes[bytes.length / 2] ^= 1;
+        File file = File.createTempFile("model", ".data");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            os.write(bytes);
+            os.close();
+            DetectionModel.map(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] bytes = write(DetectionModel.getDefault());
+        DetectionModel.read(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+    }
+
+    @Test
+    public void testFrequencyOutOfRange() throws IOException {
+        byte[] bytes = toVersion1(write(DetectionModel.getDefault()), DetectionModel.MAX_FREQUENCY + 1);
+        DetectionModel.read(ByteBuffer.wrap(toVersion1(write(DetectionModel.getDefault()), 7)));
+        File file = File.createTempFile("model", ".data");
+        try {
+            OutputStream os = new FileOutputStream(file);
+            os.write(bytes);
+            os.close();
+            try {
+                DetectionModel.map(file);
+                fail("A mapped model with a wrong frequency is accepted");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        } finally {
+            file.delete();
+        }
+        try {
+            DetectionModel.read(new ByteArrayInputStream(bytes));
+            fail("A read model with a wrong frequency is accepted");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    /**
+     * Drops the window scores of a version 2 model and sets its first digram frequency,
+     * keeping the checksum valid.
+     */
+    private static byte[] toVersion1(byte[] model, int frequency) {
+        ByteBuffer buf = ByteBuffer.wrap(model);
+        int frequenciesOffset = 24 + (buf.getInt(12) + buf.getInt(16)) * 8;
+        int size = frequenciesOffset + buf.getInt(20) * 4 + 4;
+        ByteBuffer v1 = ByteBuffer.wrap(Arrays.copyOf(model, size));
+        v1.putInt(4, 1);
+        v1.putInt(frequenciesOffset, frequency);
+        CRC32 crc = new CRC32();
+        crc.update(v1.array(), 0, size - 4);
+        v1.putInt(size - 4, (int) crc.getValue());
+        return v1.array();
+    }
+
+    private static byte[] write(DetectionModel model) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        model.write(os);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testWindowScores() {
+        DetectionModel model = DetectionModel.getDefault();
+        IntBuffer scores = model.windowScores();
+        for (int index1 = -1; index1 < CyrillicCharset.CHARS_NUM; index1++) {
+            for (int index2 = -1; index2 < CyrillicCharset.CHARS_NUM; index2++) {
+                for (int index3 = -1; index3 < CyrillicCharset.CHARS_NUM; index3++) {
+                    int score = scores.get(DetectionModel.scoreSlot(index1, index2, index3));
+                    boolean digram = index1 >= 0 && index2 >= 0;
+                    boolean trigram = digram && index3 >= 0;
+                    assertEquals(score >>> DetectionModel.FREQUENCY_SHIFT,
+                            digram ? model.digramFrequency(CyrillicCharsetDetector.digramIndex(index1, index2)) : 0);
+                    assertEquals((score & DetectionModel.LETTERS) != 0, trigram);
+                    assertEquals((score & DetectionModel.VALID_TRIGRAM) != 0, trigram
+                            && model.isTrigram(CyrillicCharsetDetector.trigramIndex(index1, index2, index3)));
+                    assertEquals((score & DetectionModel.VALID_END_BOUNDARY) != 0, trigram && model.isBoundaryTrigram(
+                            CyrillicCharsetDetector.endBoundaryTrigramIndex(index1, index2, index3)));
+                    assertEquals((score & DetectionModel.VALID_START_BOUNDARY) != 0, trigram && model.isBoundaryTrigram(
+                            CyrillicCharsetDetector.startBoundaryTrigramIndex(index1, index2, index3)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class DetectionResultTests {
+
+    private static final String TEXT = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог, "
+            + "он уважать себя заставил "
+            + "и лучше выдумать не мог.";
+    private static final double EPSILON = 1e-9;
+
+    private final CharsetDetector detector = new CharsetDetector();
+
+    @Test
+    public void testRankedCandidates() {
+        DetectionResult result = new DetectionResult();
+        for (CyrillicCharset cs : CyrillicCharsetDetector.DEFAULT_CANDIDATES) {
+            for (int end = 1; end <= TEXT.length(); end += 5) {
+                byte[] b = TEXT.substring(0, end).getBytes(cs.getNioCharset());
+                assertSame(detector.detect(b, 0, b.length, result), result);
+                assertEquals(result.getCharset(), detector.detectNioCharset(b), cs + " " + end);
+                assertEquals(result.getMethod(), b.length < 3
+                        ? DetectionResult.Method.DEFAULT : DetectionResult.Method.STATISTICS);
+                assertEquals(result.getBytesExamined(), b.length);
+                assertEquals(result.getCandidatesNum(), CyrillicCharsetDetector.DEFAULT_CANDIDATES.size());
+                double sum = 0;
+                for (int rank = 0; rank < result.getCandidatesNum(); rank++) {
+                    if (!result.isMerged(rank)) {
+                        sum += result.getConfidence(rank);
+                    }
+                    if (rank > 0) {
+                        assertTrue(result.getConfidence(rank) <= result.getConfidence(rank - 1));
+                        assertFalse(result.getCharset(rank).equals(result.getCharset(0)));
+                    }
+                    if (result.isMerged(rank)) {
+                        assertEquals(result.getConfidence(rank), result.getConfidence(rank - 1));
+                        assertEquals(result.getTrigrams(rank), result.getTrigrams(rank - 1));
+                    }
+                    assertTrue(result.getInvalidTrigrams(rank) <= result.getTrigrams(rank));
+                }
+                assertEquals(sum, 1, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testConfidentOnLongText() {
+        DetectionResult result = new DetectionResult();
+        byte[] b = TEXT.getBytes(CyrillicCharset.WIN_1251.getNioCharset());
+        detector.detect(b, 0, b.length, result);
+        assertEquals(result.getCyrillicCharset(0), CyrillicCharset.WIN_1251);
+        assertTrue(result.getConfidence() > 0.99, String.valueOf(result.getConfidence()));
+        assertEquals(result.getInvalidTrigrams(0), 0);
+        assertFalse(result.isMerged(1));
+    }
+
+    @Test
+    public void testConfidentOnKOI8() {
+        DetectionResult result = new DetectionResult();
+        String[] texts = {TEXT, "как жрать суши", "Я помню чудное мгновенье"};
+        for (String text : texts) {
+            byte[] b = text.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+            detector.detect(b, 0, b.length, result);
+            assertEquals(result.getCyrillicCharset(0), CyrillicCharset.KOI8_R);
+            assertTrue(result.getConfidence() > 0.9, text + " " + result.getConfidence());
+            // KOI8-U decodes Russian text in the same way, it does not take a share of the confidence
+            assertEquals(result.getCyrillicCharset(1), CyrillicCharset.KOI8_U);
+            assertTrue(result.isMerged(1));
+            assertEquals(result.getConfidence(1), result.getConfidence());
+        }
+    }
+
+    @Test
+    public void testUnsureOnShortText() {
+        DetectionResult result = new DetectionResult();
+        // words of two letters have no trigrams, so the charsets are told apart by digrams only
+        byte[] b = "ну да".getBytes(CyrillicCharset.WIN_1251.getNioCharset());
+        detector.detect(b, 0, b.length, result);
+        assertEquals(result.getMethod(), DetectionResult.Method.STATISTICS);
+        assertTrue(result.getConfidence() < 0.6, String.valueOf(result.getConfidence()));
+    }
+
+    @Test
+    public void testUTF8() {
+        DetectionResult result = new DetectionResult();
+        byte[] b = TEXT.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        detector.detect(direct, result);
+        assertEquals(result.getMethod(), DetectionResult.Method.UTF8);
+        assertEquals(result.getCharset(), Charset.forName("UTF-8"));
+        assertNull(result.getCyrillicCharset(0));
+        assertEquals(result.getConfidence(), 1.0);
+        assertEquals(result.getCandidatesNum(), 1);
+        assertEquals(result.getBytesExamined(), b.length);
+    }
+
+    @Test
+    public void testEarlyExit() {
+        CyrillicCharsetDetector cyrDetector =
+                new CyrillicCharsetDetector(CharsetDetector.getCyrDetector().getModel(), 8);
+        DetectionResult result = new DetectionResult();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append(TEXT).append(' ');
+        }
+        byte[] b = text.toString().getBytes(CyrillicCharset.WIN_1251.getNioCharset());
+        cyrDetector.detect(b, 0, b.length, result);
+        assertEquals(result.getCharset(), CyrillicCharset.WIN_1251.getNioCharset());
+        assertTrue(result.getBytesExamined() < b.length);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoResultYet() {
+        new DetectionResult().getCharset();
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testWrongRank() {
+        DetectionResult result = new DetectionResult();
+        detector.detect(ByteBuffer.wrap(TEXT.getBytes(Charset.forName("UTF-8"))), result);
+        result.getCharset(1);
+    }
+}
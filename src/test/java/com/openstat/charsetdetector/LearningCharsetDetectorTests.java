@@ -0,0 +1,113 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class LearningCharsetDetectorTests {
+
+    @Test
+    public void testModelDoesNotDependOnChunks() throws IOException {
+        Path corpus = writeCorpus(CyrillicCharset.WIN_1251);
+        try {
+            List<LearningCharsetDetector.Corpus> corpora =
+                    Arrays.asList(new LearningCharsetDetector.Corpus(corpus, CyrillicCharset.WIN_1251));
+            byte[] expected = serialize(LearningCharsetDetector.learn(corpora, 1, Integer.MAX_VALUE - 8));
+            for (int chunkSize : new int[] {1, 2, 3, 4, 1000, 65536}) {
+                for (int threadsNum : new int[] {1, 3}) {
+                    assertEquals(serialize(LearningCharsetDetector.learn(corpora, threadsNum, chunkSize)), expected,
+                            chunkSize + " bytes in a chunk, " + threadsNum + " threads");
+                }
+            }
+        } finally {
+            Files.delete(corpus);
+        }
+    }
+
+    @Test
+    public void testSeveralCorpora() throws IOException {
+        Path win1251 = writeCorpus(CyrillicCharset.WIN_1251);
+        Path koi8 = writeCorpus(CyrillicCharset.KOI8_R);
+        try {
+            DetectionModel single = LearningCharsetDetector.learn(
+                    Arrays.asList(new LearningCharsetDetector.Corpus(win1251, CyrillicCharset.WIN_1251)), 2, 4096);
+            DetectionModel both = LearningCharsetDetector.learn(
+                    Arrays.asList(new LearningCharsetDetector.Corpus(win1251, CyrillicCharset.WIN_1251),
+                            new LearningCharsetDetector.Corpus(koi8, CyrillicCharset.KOI8_R)), 2, 4096);
+            // the same text in another charset, except the letters KOI8-R does not have
+            int digramsNum = CyrillicCharset.CHARS_NUM * CyrillicCharset.CHARS_NUM;
+            long singleSum = 0;
+            long bothSum = 0;
+            for (int i = 0; i < digramsNum; i++) {
+                assertTrue(both.digramFrequency(i) >= single.digramFrequency(i));
+                singleSum += single.digramFrequency(i);
+                bothSum += both.digramFrequency(i);
+            }
+            assertTrue(bothSum > 2 * singleSum * 9 / 10, bothSum + " " + singleSum);
+            for (int i = 0; i < digramsNum * CyrillicCharset.CHARS_NUM; i++) {
+                assertTrue(both.isTrigram(i) || !single.isTrigram(i));
+            }
+
+            CyrillicCharsetDetector detector = new CyrillicCharsetDetector(both);
+            byte[] b = Files.readAllBytes(koi8);
+            assertEquals(detector.detect(b, 0, 4096), CyrillicCharset.KOI8_R);
+        } finally {
+            Files.delete(win1251);
+            Files.delete(koi8);
+        }
+    }
+
+    @Test
+    public void testFrequenciesScaledDown() {
+        long max = 10L * DetectionModel.MAX_FREQUENCY;
+        int[] frequencies = LearningCharsetDetector.toModelFrequencies(new long[] {0, 1, max / 2, max});
+        assertEquals(frequencies[0], 0);
+        assertEquals(frequencies[1], 1);
+        assertEquals(frequencies[2], DetectionModel.MAX_FREQUENCY / 2, 1);
+        assertEquals(frequencies[3], DetectionModel.MAX_FREQUENCY);
+        assertEquals(LearningCharsetDetector.toModelFrequencies(new long[] {5, 7}), new int[] {5, 7});
+    }
+
+    private static Path writeCorpus(CyrillicCharset cs) throws IOException {
+        InputStream is = LearningCharsetDetectorTests.class.getResourceAsStream("/benchmarks/pushkin.txt");
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            text.write(buffer, 0, read);
+        }
+        is.close();
+        Path corpus = Files.createTempFile("corpus", ".txt");
+        Files.write(corpus, new String(text.toByteArray(), "UTF-8").getBytes(cs.getNioCharset()));
+        return corpus;
+    }
+
+    private static byte[] serialize(DetectionModel model) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        model.write(os);
+        return os.toByteArray();
+    }
+}
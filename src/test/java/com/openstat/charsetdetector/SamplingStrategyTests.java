@@ -0,0 +1,107 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class SamplingStrategyTests {
+
+    private static final String PHRASE = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог. ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SamplingStrategy sampling = new SamplingStrategy(1024, 5);
+
+    @Test
+    public void testWindowsDoNotSplitWords() {
+        byte[] b = repeat(PHRASE, 500).getBytes(UTF8);
+        assertTrue(sampling.isSampled(b.length));
+        for (int w = 0; w < sampling.getWindowsNum(); w++) {
+            int from = sampling.windowStart(b, 0, b.length, w);
+            int to = sampling.windowEnd(b, 0, b.length, w);
+            assertTrue(from == 0 || b[from] == ' ');
+            assertTrue(to == b.length || b[to] == ' ');
+            assertTrue(to - from >= sampling.getWindowSize() - SamplingStrategy.MAX_SNAP_DISTANCE);
+        }
+    }
+
+    @Test
+    public void testWindowsDoNotSplitUTF8Sequences() {
+        byte[] b = repeat("слово", 2000).getBytes(UTF8);
+        for (int w = 0; w < sampling.getWindowsNum(); w++) {
+            int from = sampling.windowStart(b, 0, b.length, w);
+            int to = sampling.windowEnd(b, 0, b.length, w);
+            assertTrue(UTF8CharsetDetector.isUTF8(b, from, to - from));
+        }
+    }
+
+    @Test
+    public void testDetectSampled() {
+        CharsetDetector detector = new CharsetDetector(CharsetDetector.getCyrDetector(), sampling);
+        CharsetDetector wholeDetector = new CharsetDetector();
+        String text = repeat(PHRASE, 500);
+        DetectionContext ctx = new DetectionContext();
+        for (Charset cs : new Charset[] {UTF8, CyrillicCharset.WIN_1251.getNioCharset(),
+                CyrillicCharset.KOI8_R.getNioCharset(), CyrillicCharset.CP866.getNioCharset()}) {
+            byte[] b = text.getBytes(cs);
+            assertEquals(detector.detect(b, 0, b.length, ctx), wholeDetector.detectNioCharset(b));
+            assertTrue(ctx.getBytesConsumed() <= sampling.getWindowSize() * sampling.getWindowsNum()
+                    + sampling.getWindowsNum() * SamplingStrategy.MAX_SNAP_DISTANCE);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+            direct.put(b).flip();
+            assertEquals(detector.detect(direct, ctx), wholeDetector.detectNioCharset(b));
+        }
+    }
+
+    @Test
+    public void testSmallWindowsWithoutContext() {
+        CharsetDetector detector = new CharsetDetector(CharsetDetector.getCyrDetector(), new SamplingStrategy(64, 2));
+        // the middle is not sampled, so the input is taken as UTF-8
+        byte[] b = (repeat(PHRASE, 2) + "\u00ff" + repeat(PHRASE, 2)).getBytes(UTF8);
+        b[b.length / 2] = (byte) 0xFF;
+        assertEquals(detector.detect(b, 0, b.length, new DetectionContext()), UTF8);
+        assertEquals(detector.detect(b, 0, b.length), UTF8);
+        assertEquals(detector.detect(ByteBuffer.wrap(b)), UTF8);
+    }
+
+    @Test
+    public void testSmallInputIsAnalyzedWhole() {
+        CharsetDetector detector = new CharsetDetector(CharsetDetector.getCyrDetector(), sampling);
+        byte[] b = PHRASE.getBytes(CyrillicCharset.KOI8_R.getNioCharset());
+        DetectionContext ctx = new DetectionContext();
+        assertEquals(detector.detect(b, 0, b.length, ctx), CyrillicCharset.KOI8_R.getNioCharset());
+        assertEquals(ctx.getBytesConsumed(), b.length);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoTail() {
+        new SamplingStrategy(1024, 1);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            text.append(s);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class SegmentingCharsetDetectorTests {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset WIN_1251 = CyrillicCharset.WIN_1251.getNioCharset();
+    private static final Charset KOI8_R = CyrillicCharset.KOI8_R.getNioCharset();
+    private static final Charset CP866 = CyrillicCharset.CP866.getNioCharset();
+    private static final int LINES_PER_PART = 100;
+
+    private final List<String> lines = new ArrayList<String>();
+
+    @BeforeClass
+    public void readLines() throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                SegmentingCharsetDetectorTests.class.getResourceAsStream("/benchmarks/pushkin.txt"), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() >= 20 && !line.matches(".*[a-zA-Z?].*")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testMixedCharsets() throws Exception {
+        Charset[] parts = {WIN_1251, KOI8_R, UTF8, CP866, WIN_1251};
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<Segment> expected = new ArrayList<Segment>();
+        for (int p = 0; p < parts.length; p++) {
+            byte[] part = text(p * LINES_PER_PART, LINES_PER_PART).getBytes(parts[p]);
+            expected.add(new Segment(data.size(), part.length, parts[p]));
+            data.write(part);
+        }
+
+        Collector collector = new Collector();
+        new SegmentingCharsetDetector(collector).detect(new ByteArrayInputStream(data.toByteArray()));
+        assertEquals(collector.segments, expected);
+    }
+
+    @Test
+    public void testChunksGiveSameSegments() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(text(0, 20).getBytes(KOI8_R));
+        data.write(text(20, 20).getBytes(UTF8));
+        data.write(text(40, 20).getBytes(WIN_1251));
+        byte[] b = data.toByteArray();
+
+        Collector whole = new Collector();
+        SegmentingCharsetDetector detector = new SegmentingCharsetDetector(whole);
+        detector.feed(b);
+        detector.finish();
+        assertEquals(whole.segments.size(), 3);
+
+        Collector chunked = new Collector();
+        detector = new SegmentingCharsetDetector(chunked);
+        Random random = new Random(42);
+        for (int off = 0; off < b.length;) {
+            int len = Math.min(b.length - off, random.nextInt(8));
+            detector.feed(b, off, len);
+            off += len;
+        }
+        assertEquals(detector.getBytesFed(), b.length);
+        detector.finish();
+        assertEquals(detector.getBytesFed(), 0);
+        assertEquals(chunked.segments, whole.segments);
+    }
+
+    @Test
+    public void testNoisyLinesDoNotSplit() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(text(0, 10).getBytes(WIN_1251));
+        data.write("Да\n".getBytes(KOI8_R));
+        data.write("Ну да\n".getBytes(UTF8));
+        data.write(text(10, 10).getBytes(WIN_1251));
+        byte[] b = data.toByteArray();
+
+        Collector collector = new Collector();
+        new SegmentingCharsetDetector(collector).detect(new ByteArrayInputStream(b));
+        assertEquals(collector.segments.size(), 1);
+        assertEquals(collector.segments.get(0), new Segment(0, b.length, WIN_1251));
+    }
+
+    @Test
+    public void testOneSegmentAsWholeDetection() throws Exception {
+        CharsetDetector charsetDetector = new CharsetDetector();
+        String[] texts = {"", "a", "Hello world\n", "Да", "Мой дядя самых честных правил",
+            text(0, 3)};
+        Collector collector = new Collector();
+        SegmentingCharsetDetector detector = new SegmentingCharsetDetector(collector);
+        for (String text : texts) {
+            for (Charset cs : new Charset[] {UTF8, WIN_1251, KOI8_R, CP866}) {
+                byte[] b = text.getBytes(cs);
+                collector.segments.clear();
+                detector.detect(new ByteArrayInputStream(b));
+                if (b.length == 0) {
+                    assertTrue(collector.segments.isEmpty());
+                } else {
+                    assertEquals(collector.segments, Collections.singletonList(
+                            new Segment(0, b.length, charsetDetector.detectNioCharset(b))), text + " " + cs);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLongLinesAreCut() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            line.append(lines.get(i)).append(' ');
+        }
+        byte[] koi8 = line.toString().getBytes(KOI8_R);
+        byte[] utf8 = line.toString().getBytes(UTF8);
+        byte[] b = new byte[koi8.length + utf8.length];
+        System.arraycopy(koi8, 0, b, 0, koi8.length);
+        System.arraycopy(utf8, 0, b, koi8.length, utf8.length);
+
+        Collector collector = new Collector();
+        SegmentingCharsetDetector detector = new SegmentingCharsetDetector(
+                CharsetDetector.getCyrDetector(), 128, SegmentingCharsetDetector.DEFAULT_SWITCH_MARGIN, collector);
+        detector.feed(b);
+        detector.finish();
+        assertEquals(collector.segments.size(), 2);
+        assertEquals(collector.segments.get(0).charset, KOI8_R);
+        assertEquals(collector.segments.get(1).charset, UTF8);
+        // a segment starts at a block boundary, at most one block away from the switch
+        assertTrue(Math.abs(collector.segments.get(1).offset - koi8.length) <= 128);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWrongParameters() {
+        new SegmentingCharsetDetector(CharsetDetector.getCyrDetector(), 1024, 0, new Collector());
+    }
+
+    private String text(int from, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < from + count; i++) {
+            text.append(lines.get(i)).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static final class Segment {
+
+        final long offset;
+        final long length;
+        final Charset charset;
+
+        Segment(long offset, long length, Charset charset) {
+            this.offset = offset;
+            this.length = length;
+            this.charset = charset;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Segment)) {
+                return false;
+            }
+            Segment other = (Segment) obj;
+            return offset == other.offset && length == other.length && charset.equals(other.charset);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) offset;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + offset + ", " + length + ", " + charset + "]";
+        }
+    }
+
+    private static final class Collector implements SegmentingCharsetDetector.Listener {
+
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        @Override
+        public void segment(long offset, long length, Charset charset) {
+            segments.add(new Segment(offset, length, charset));
+        }
+    }
+}
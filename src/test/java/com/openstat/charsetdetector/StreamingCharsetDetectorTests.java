@@ -0,0 +1,156 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+@Test
+public final class StreamingCharsetDetectorTests {
+
+    private static final String TEXT = "Мой дядя самых честных правил, "
+            + "когда не в шутку занемог, "
+            + "он уважать себя заставил "
+            + "и лучше выдумать не мог.";
+
+    private final CharsetDetector detector = new CharsetDetector();
+
+    @Test
+    public void testChunksGiveWholeInputResult() {
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        Random random = new Random(42);
+        for (Charset cs : charsets()) {
+            for (int end = 0; end <= TEXT.length(); end += 7) {
+                byte[] b = TEXT.substring(0, end).getBytes(cs);
+                streaming.reset();
+                int off = 0;
+                while (off < b.length) {
+                    int len = Math.min(b.length - off, random.nextInt(5));
+                    streaming.feed(b, off, len);
+                    off += len;
+                }
+                assertEquals(streaming.getBytesFed(), b.length);
+                assertEquals(streaming.result(), detector.detectNioCharset(b), cs + " " + end);
+            }
+        }
+    }
+
+    @Test
+    public void testDirectBufferChunks() {
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        for (Charset cs : charsets()) {
+            byte[] b = TEXT.getBytes(cs);
+            ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+            direct.put(b).flip();
+            streaming.reset();
+            for (int off = 0; off < b.length; off += 3) {
+                direct.limit(Math.min(b.length, off + 3)).position(off);
+                streaming.feed(direct);
+            }
+            assertEquals(streaming.result(), detector.detectNioCharset(b));
+        }
+    }
+
+    @Test
+    public void testResultDoesNotChangeState() {
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        Charset koi8 = CyrillicCharset.KOI8_R.getNioCharset();
+        byte[] b = TEXT.getBytes(koi8);
+        streaming.feed(b, 0, b.length / 2);
+        streaming.result();
+        streaming.feed(b, b.length / 2, b.length - b.length / 2);
+        assertEquals(streaming.result(), detector.detectNioCharset(b));
+    }
+
+    @Test
+    public void testStopsWhenConfident() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append(TEXT).append(' ');
+        }
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        for (Charset cs : charsets()) {
+            byte[] b = longText.toString().getBytes(cs);
+            Charset expected = detector.detectNioCharset(b);
+            assertEquals(streaming.detect(new ByteArrayInputStream(b)), expected);
+            assertTrue(streaming.isConfident());
+            assertTrue(streaming.getBytesFed() < b.length);
+
+            assertEquals(streaming.detect(Channels.newChannel(new ByteArrayInputStream(b))), expected);
+            assertTrue(streaming.getBytesFed() < b.length);
+        }
+    }
+
+    @Test
+    public void testUTF8CutOffBySequence() {
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        byte[] b = (TEXT + TEXT).getBytes(Charset.forName("UTF-8"));
+        streaming.feed(b, 0, b.length - 1);
+        assertTrue(streaming.isConfident());
+        assertEquals(streaming.result(true), Charset.forName("UTF-8"));
+        assertEquals(streaming.result(), detector.detect(b, 0, b.length - 1));
+    }
+
+    @Test
+    public void testTruncatedUTF8GivesWholeInputResult() {
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        Random random = new Random(42);
+        byte[] utf8 = (TEXT + TEXT).getBytes(Charset.forName("UTF-8"));
+        for (int end = 0; end <= utf8.length; end++) {
+            streaming.reset();
+            int off = 0;
+            while (off < end) {
+                int len = Math.min(end - off, random.nextInt(5));
+                streaming.feed(utf8, off, len);
+                off += len;
+            }
+            assertEquals(streaming.result(), detector.detect(utf8, 0, end), String.valueOf(end));
+        }
+    }
+
+    @Test
+    public void testStopsInsideUTF8Sequence() throws Exception {
+        final byte[] b = (TEXT + TEXT + TEXT).getBytes(Charset.forName("UTF-8"));
+        StreamingCharsetDetector streaming = new StreamingCharsetDetector();
+        // every read returns an odd number of bytes, so reading stops inside a two-byte sequence
+        InputStream is = new ByteArrayInputStream(b) {
+            @Override
+            public int read(byte[] buf) {
+                return read(buf, 0, 67);
+            }
+        };
+        assertEquals(streaming.detect(is), Charset.forName("UTF-8"));
+        assertTrue(streaming.getBytesFed() < b.length);
+        assertFalse(UTF8CharsetDetector.isUTF8(b, 0, (int) streaming.getBytesFed()));
+    }
+
+    private static Charset[] charsets() {
+        CyrillicCharset[] cyrillic = CyrillicCharset.values();
+        Charset[] charsets = new Charset[cyrillic.length + 1];
+        charsets[0] = Charset.forName("UTF-8");
+        for (CyrillicCharset cs : cyrillic) {
+            charsets[cs.ordinal() + 1] = cs.getNioCharset();
+        }
+        return charsets;
+    }
+}
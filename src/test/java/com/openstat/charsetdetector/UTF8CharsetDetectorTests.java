@@ -16,6 +16,7 @@
 package com.openstat.charsetdetector;
 
 import org.testng.annotations.Test;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import static org.testng.Assert.*;
@@ -55,4 +56,77 @@ public final class UTF8CharsetDetectorTests {
         assertEquals(new String(b, Charset.forName("UTF-8")), "asdadasdWWWW12!!!@@@###$$3123");
 
     }
+
+    @Test
+    public void testIsUTF8InRange() {
+        byte[] b = "ЯЯЯ".getBytes(Charset.forName("UTF-8"));
+
+        assertTrue(UTF8CharsetDetector.isUTF8(b, 2, 4));
+        assertTrue(UTF8CharsetDetector.isUTF8(b, 0, 0));
+        // truncated by the end of the range
+        assertFalse(UTF8CharsetDetector.isUTF8(b, 0, 5));
+        assertFalse(UTF8CharsetDetector.isUTF8(b, 1, 2));
+
+        b = "中国".getBytes(Charset.forName("UTF-8"));
+        assertTrue(UTF8CharsetDetector.isUTF8(b, 3, 3));
+        assertFalse(UTF8CharsetDetector.isUTF8(b, 0, 5));
+    }
+
+    @Test
+    public void testIsUTF8InBuffer() {
+        byte[] b = "asdadЯЯЯВВВВWУУУУфффф23ййй23".getBytes(Charset.forName("UTF-8"));
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        assertTrue(UTF8CharsetDetector.isUTF8(direct));
+        assertTrue(UTF8CharsetDetector.isUTF8(ByteBuffer.wrap(b)));
+
+        direct.limit(b.length - 3);
+        assertFalse(UTF8CharsetDetector.isUTF8(direct));
+        assertFalse(UTF8CharsetDetector.isUTF8(ByteBuffer.wrap(b, 0, b.length - 3)));
+
+        b = "asdadЯЯЯВВВВWУУУУфффф23ййй23".getBytes(Charset.forName("KOI8-R"));
+        direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        assertFalse(UTF8CharsetDetector.isUTF8(direct));
+    }
+
+    @Test
+    public void testIsUTF8Strict() {
+        assertTrue(UTF8CharsetDetector.isUTF8("a\uD83D\uDE00b".getBytes(Charset.forName("UTF-8"))));
+        // 4-byte head followed by ASCII
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xF0, 'a', 'b', 'c'}));
+        // overlong forms
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xC0, (byte) 0x80}));
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xE0, (byte) 0x80, (byte) 0x80}));
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xF0, (byte) 0x80, (byte) 0x80, (byte) 0x80}));
+        // surrogate
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xED, (byte) 0xA0, (byte) 0x80}));
+        // above U+10FFFF
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80}));
+        assertFalse(UTF8CharsetDetector.isUTF8(new byte[] {(byte) 0xF5, (byte) 0x80, (byte) 0x80, (byte) 0x80}));
+    }
+
+    @Test
+    public void testValidate() {
+        byte[] b = "0123456789abcdefЯ".getBytes(Charset.forName("UTF-8"));
+        assertEquals(UTF8CharsetDetector.validate(b, 0, b.length), UTF8CharsetDetector.Validity.VALID);
+        assertEquals(UTF8CharsetDetector.validate(b, 0, b.length - 1), UTF8CharsetDetector.Validity.TRUNCATED);
+        assertEquals(UTF8CharsetDetector.validate(b, 1, b.length - 2), UTF8CharsetDetector.Validity.TRUNCATED);
+        assertEquals(UTF8CharsetDetector.validate(b, b.length - 1, 1), UTF8CharsetDetector.Validity.INVALID);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+        direct.put(b).flip();
+        assertEquals(UTF8CharsetDetector.validate(direct), UTF8CharsetDetector.Validity.VALID);
+        direct.limit(b.length - 1);
+        assertEquals(UTF8CharsetDetector.validate(direct), UTF8CharsetDetector.Validity.TRUNCATED);
+    }
+
+    @Test
+    public void testCountNonAscii() {
+        byte[] b = "abcdefghijklЯмnopqrstuvwxyzЮ".getBytes(Charset.forName("UTF-8"));
+        assertEquals(UTF8CharsetDetector.countNonAscii(b, 0, b.length, 100), 6);
+        assertEquals(UTF8CharsetDetector.countNonAscii(b, 1, b.length - 2, 100), 4);
+        assertEquals(UTF8CharsetDetector.countNonAscii(b, 0, 12, 100), 0);
+        assertTrue(UTF8CharsetDetector.countNonAscii(b, 0, b.length, 3) >= 3);
+    }
 }
@@ -21,6 +21,11 @@ import org.testng.annotations.Test;
 import static org.testng.Assert.assertTrue;
 
 import com.openstat.charsetdetector.CharsetDetector;
+import com.openstat.charsetdetector.CyrillicCharset;
+import com.openstat.charsetdetector.CyrillicCharsetDetector;
+import com.openstat.charsetdetector.DetectionContext;
+import com.openstat.charsetdetector.DetectionModel;
+import com.openstat.charsetdetector.UTF8CharsetDetector;
 import org.testng.annotations.BeforeGroups;
 
 @Test(groups = "benchmarks")
@@ -49,12 +54,18 @@ public class BenchmarksTests {
         Charset.forName("KOI8-U")
     };
 
-    private static final int INIT_MAX_TIME = 50000000;
+    private static final int INIT_MAX_TIME = 50000;
 
     private static final Charset NIO_CS_WIN_1251 = Charset.forName("windows-1251");
 
     private static final int INIT_VALUE = 1000;
 
+    private static final int THROUGHPUT_VALUE = 200;
+
+    private static final int DOCUMENT_SIZE = 2048;
+
+    private static final int[] EARLY_EXIT_MARGINS = new int[] {4, 8, 16, 32, 64};
+
     private String testOutput = ".";
     private int segmentSize = 2;
     private int wordsInPhrase = 3;
@@ -110,6 +121,98 @@ public class BenchmarksTests {
         testDetect("kocubinski.txt", NORMAL_ASSERTION, UA_CHARSETS);
     }
 
+    @Test
+    public void testThroughputRussian() throws IOException {
+        testThroughput("pushkin.txt");
+    }
+
+    @Test
+    public void testThroughputUkrainian() throws IOException {
+        testThroughput("kocubinski.txt");
+    }
+
+    @Test
+    public void testEarlyExitRussian() throws IOException {
+        testEarlyExit("pushkin.txt");
+    }
+
+    @Test
+    public void testEarlyExitUkrainian() throws IOException {
+        testEarlyExit("kocubinski.txt");
+    }
+
+    @Test
+    public void testUTF8Throughput() throws IOException {
+        String text = readBenchmarksText("pushkin.txt") + readBenchmarksText("kocubinski.txt");
+        StringBuilder ascii = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            ascii.append(ch < 0x80 ? ch : 'x');
+        }
+        byte[][] inputs = new byte[][] {
+            ascii.toString().getBytes("UTF-8"),
+            text.getBytes("UTF-8"),
+            text.getBytes(NIO_CS_WIN_1251)
+        };
+        String[] names = new String[] {"ASCII", "UTF-8", "windows-1251"};
+
+        BufferedWriter writer = createWriter(testOutput + "/utf8.throughput.csv");
+        writer.write("Input" + DELIMITER + "Bytes" + DELIMITER + "Legacy (MB/s)" + DELIMITER + "Automaton (MB/s)");
+        writer.newLine();
+        for (int n = 0; n < inputs.length; n++) {
+            byte[] bytes = inputs[n];
+            Benchmarks legacy = new Benchmarks();
+            Benchmarks automaton = new Benchmarks();
+            for (int i = 0; i < THROUGHPUT_VALUE; i++) {
+                legacy.profileEnter();
+                boolean legacyResult = legacyIsUTF8(bytes);
+                legacy.profileExit();
+                automaton.profileEnter();
+                boolean result = UTF8CharsetDetector.isUTF8(bytes);
+                automaton.profileExit();
+                assertTrue(result == legacyResult);
+            }
+            writer.write(names[n] + DELIMITER + bytes.length
+                    + DELIMITER + (bytes.length * 1000L / Math.max(1, legacy.getAvarageTime()))
+                    + DELIMITER + (bytes.length * 1000L / Math.max(1, automaton.getAvarageTime())));
+            writer.newLine();
+        }
+        writer.close();
+    }
+
+    /**
+     * The byte-at-a-time UTF-8 check that was used before the automaton, kept as a baseline.
+     */
+    private static boolean legacyIsUTF8(byte[] bytes) {
+        try {
+            for (int i = 0; i < bytes.length;) {
+                int b = bytes[i] & 0xff;
+                if (b < 0x80) {
+                    i++;
+                } else if ((b >> 5) == 0x6) {
+                    if (bytes[++i] > -64) {
+                        return false;
+                    }
+                    i++;
+                } else if ((b >> 4) == 0xE) {
+                    for (int j = 0; j < 2; j++) {
+                        if (bytes[++i] > -64) {
+                            return false;
+                        }
+                    }
+                    i++;
+                } else if ((b >> 3) == 0x1E) {
+                    i++;
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
     @Test
     public void testGarbage() throws IOException {
         testDetect("garbage.txt", new AssertStrategy() {
@@ -153,6 +256,72 @@ public class BenchmarksTests {
         assertion.checkResults(triesNum, failures.size());
     }
 
+    private void testThroughput(String textFile) throws IOException {
+        CyrillicCharsetDetector detector = CharsetDetector.getCyrDetector();
+        String text = readBenchmarksText(textFile);
+        BufferedWriter writer = createWriter(testOutput + "/" + textFile + ".throughput.csv");
+        writer.write("Charset" + DELIMITER + "Bytes" + DELIMITER + Benchmarks.getHeaders() + DELIMITER + "MB/s");
+        writer.newLine();
+        for (CyrillicCharset cs : detector.getCandidates()) {
+            byte[] bytes = text.getBytes(cs.getNioCharset());
+            Benchmarks benchmarks = new Benchmarks();
+            for (int i = 0; i < THROUGHPUT_VALUE; i++) {
+                benchmarks.profileEnter();
+                CyrillicCharset detected = detector.detectCyrillicCharset(bytes);
+                benchmarks.profileExit();
+                if (detected != cs) {
+                    benchmarks.failed();
+                }
+            }
+            writer.write(cs + DELIMITER + bytes.length + DELIMITER + benchmarks.toString()
+                    + DELIMITER + (bytes.length * 1000L / benchmarks.getAvarageTime()));
+            writer.newLine();
+        }
+        writer.close();
+    }
+
+    /**
+     * Splits the text into documents of #DOCUMENT_SIZE chars and compares
+     * the early exit results with the results of the whole documents' scan.
+     */
+    private void testEarlyExit(String textFile) throws IOException {
+        CyrillicCharsetDetector fullDetector = CharsetDetector.getCyrDetector();
+        String text = readBenchmarksText(textFile);
+        DetectionContext ctx = new DetectionContext();
+        BufferedWriter writer = createWriter(testOutput + "/" + textFile + ".earlyexit.csv");
+        writer.write("Margin" + DELIMITER + "Charset" + DELIMITER + "Documents" + DELIMITER + "Changed results"
+                + DELIMITER + "Wrong results" + DELIMITER + "Avarage bytes consumed" + DELIMITER + "Avarage bytes");
+        writer.newLine();
+        for (int margin : EARLY_EXIT_MARGINS) {
+            CyrillicCharsetDetector detector = new CyrillicCharsetDetector(DetectionModel.getDefault(), margin);
+            for (CyrillicCharset cs : detector.getCandidates()) {
+                int documents = 0;
+                int changed = 0;
+                int wrong = 0;
+                long consumed = 0;
+                long all = 0;
+                for (int start = 0; start + DOCUMENT_SIZE <= text.length(); start += DOCUMENT_SIZE) {
+                    byte[] bytes = text.substring(start, start + DOCUMENT_SIZE).getBytes(cs.getNioCharset());
+                    CyrillicCharset detected = detector.detect(bytes, 0, bytes.length, ctx);
+                    documents++;
+                    consumed += ctx.getBytesConsumed();
+                    all += bytes.length;
+                    if (detected != fullDetector.detectCyrillicCharset(bytes)) {
+                        changed++;
+                    }
+                    if (detected != cs) {
+                        wrong++;
+                    }
+                }
+                writer.write("" + margin + DELIMITER + cs + DELIMITER + documents + DELIMITER + changed
+                        + DELIMITER + wrong + DELIMITER + (consumed / Math.max(1, documents))
+                        + DELIMITER + (all / Math.max(1, documents)));
+                writer.newLine();
+            }
+        }
+        writer.close();
+    }
+
     private void runBenchmarksOnPhrase(Charset[] charsetsToTest, CharsetDetector detector, String phrase,
                 Map<Integer, Benchmarks> benchmarksResults, List<Failure> failures) {
         for (Charset cs : charsetsToTest) {
@@ -184,6 +353,18 @@ public class BenchmarksTests {
         return benchmarks;
     }
 
+    private static String readBenchmarksText(String textFile) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(BenchmarksTests.class.getResourceAsStream("/benchmarks/" + textFile), "UTF-8"));
+        StringBuilder text = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            text.append(line).append('\n');
+        }
+        reader.close();
+        return text.toString();
+    }
+
     private static ArrayList<String> splitBenchmarksTextIntoWords(String textFile) throws IOException {
         BufferedReader writer = new BufferedReader(
                 new InputStreamReader(BenchmarksTests.class.getResourceAsStream("/benchmarks/" + textFile), "UTF-8"));
@@ -0,0 +1,393 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Detects charsets of many files in parallel, e.g. of a whole archive.
+ *
+ * Directory trees are walked by the calling thread, which hands the files to a fixed number of workers
+ * through a bounded queue. Every worker owns a #StreamingCharsetDetector and a read buffer,
+ * and reads a file only until the result is confident, so memory does not depend on the number
+ * or the size of files. Workers share nothing but the queue and the listener.
+ *
+ * A file that is read to the end gets the same charset as from #CharsetDetector. A file that is read
+ * only until the result is confident gets the charset of the read part, which may differ from the charset
+ * of the whole file; valid UTF-8 cut inside a multibyte sequence is still taken as UTF-8 there.
+ *
+ * If a worker fails with an unexpected exception, e.g. thrown by the listener, the rest of the files
+ * are skipped and #detect rethrows the exception, so the tool fails instead of hanging.
+ *
+ * Workers are plain platform threads rather than fork/join tasks or virtual threads: every file is an
+ * independent unit of blocking I/O and scanning with per-worker buffers. How the throughput scales with
+ * the number of threads has not been measured yet, the tool was only run on a one-core machine.
+ */
+public final class BulkCharsetDetector {
+
+    /**
+     * Receives the results. It is called by the worker threads, so it must be thread safe.
+     * An exception thrown by the listener stops the detection.
+     */
+    public interface Listener {
+
+        /**
+         * @param path detected file
+         * @param charset detected charset
+         * @param bytesRead number of bytes read before the result was confident
+         */
+        void detected(Path path, Charset charset, long bytesRead);
+
+        void failed(Path path, IOException e);
+    }
+
+    public static final int DEFAULT_READ_AHEAD = 64 * 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Tells a worker that there are no more files.
+     */
+    private static final Path END = Paths.get("");
+
+    private final CyrillicCharsetDetector cyrDetector;
+    private final int threadsNum;
+    private final int readAhead;
+    private final int queueCapacity;
+
+    /**
+     * @param cyrDetector detector of one-byte charsets shared by the workers
+     * @param threadsNum number of workers
+     * @param readAhead size of the read buffer of every worker in bytes
+     * @param queueCapacity maximal number of files waiting for a worker
+     */
+    public BulkCharsetDetector(CyrillicCharsetDetector cyrDetector, int threadsNum, int readAhead,
+            int queueCapacity) {
+        if (threadsNum < 1 || readAhead < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Wrong bulk detection parameters: " + threadsNum + " threads, "
+                    + readAhead + " bytes read ahead, " + queueCapacity + " queued files");
+        }
+        this.cyrDetector = cyrDetector;
+        this.threadsNum = threadsNum;
+        this.readAhead = readAhead;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Detects charsets of the files and of all the files in the directory trees.
+     * Returns when all the results are passed to the listener.
+     * Files that can not be read are reported to #Listener.failed.
+     *
+     * @param paths files and directories
+     * @param listener receives the results
+     * @throws InterruptedException
+     * @throws RuntimeException the first unexpected exception of a worker, e.g. thrown by the listener
+     */
+    public void detect(List<Path> paths, Listener listener) throws InterruptedException {
+        final BlockingQueue<Path> queue = new ArrayBlockingQueue<Path>(queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Worker[] workers = new Worker[threadsNum];
+        for (int i = 0; i < threadsNum; i++) {
+            workers[i] = new Worker(queue, listener, failure);
+            workers[i].setName("charset-detector-" + i);
+            workers[i].start();
+        }
+        try {
+            for (Path path : paths) {
+                if (failure.get() != null) {
+                    break;
+                }
+                enqueue(path, queue, listener, failure);
+            }
+        } catch (InterruptedException e) {
+            // the workers are interrupted too, see stop()
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            stop(workers, queue);
+        }
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends the end to every worker and waits until all of them finish. If the calling thread is interrupted,
+     * the workers are interrupted instead of waiting for the queued files. The interrupt is preserved.
+     */
+    private static void stop(Worker[] workers, BlockingQueue<Path> queue) {
+        boolean interrupted = Thread.interrupted();
+        // the workers take from the queue until the end even after a failure, so put() does not block forever
+        for (int i = 0; i < workers.length && !interrupted; i++) {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            queue.clear();
+            for (Worker worker : workers) {
+                worker.interrupt();
+            }
+        }
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void enqueue(Path path, final BlockingQueue<Path> queue, final Listener listener,
+            final AtomicReference<Throwable> failure) throws InterruptedException {
+        if (!Files.isDirectory(path)) {
+            queue.put(path);
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (failure.get() != null) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (!attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        queue.put(file);
+                        return FileVisitResult.CONTINUE;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    listener.failed(file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            listener.failed(path, e);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        private final BlockingQueue<Path> queue;
+        private final Listener listener;
+        private final AtomicReference<Throwable> failure;
+        private final StreamingCharsetDetector detector = new StreamingCharsetDetector(cyrDetector);
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(readAhead);
+
+        Worker(BlockingQueue<Path> queue, Listener listener, AtomicReference<Throwable> failure) {
+            this.queue = queue;
+            this.listener = listener;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Path path = queue.take(); path != END; path = queue.take()) {
+                    // after a failure the rest of the files are skipped, but the queue is still drained
+                    if (failure.get() == null) {
+                        detectOrFail(path);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void detectOrFail(Path path) {
+            try {
+                detect(path);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } catch (Error e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void detect(Path path) {
+            boolean stoppedEarly;
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    detector.reset();
+                    while (!detector.isConfident()) {
+                        buffer.clear();
+                        if (channel.read(buffer) < 0) {
+                            break;
+                        }
+                        buffer.flip();
+                        detector.feed(buffer);
+                    }
+                    stoppedEarly = detector.getBytesFed() < channel.size();
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                listener.failed(path, e);
+                return;
+            }
+            listener.detected(path, detector.result(stoppedEarly), detector.getBytesFed());
+        }
+    }
+
+    /**
+     * Writes the results as CSV lines: path, charset name or "error", bytes read or error message.
+     */
+    public static final class CsvListener implements Listener {
+
+        private static final char DELIMITER = ',';
+
+        private final Writer writer;
+        private long detectedNum;
+        private long failedNum;
+
+        public CsvListener(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void detected(Path path, Charset charset, long bytesRead) {
+            detectedNum++;
+            write(path, charset.name(), String.valueOf(bytesRead));
+        }
+
+        @Override
+        public synchronized void failed(Path path, IOException e) {
+            failedNum++;
+            write(path, "error", String.valueOf(e));
+        }
+
+        public synchronized long getDetectedNum() {
+            return detectedNum;
+        }
+
+        public synchronized long getFailedNum() {
+            return failedNum;
+        }
+
+        private void write(Path path, String charset, String details) {
+            try {
+                writer.write(quote(path.toString()) + DELIMITER + charset + DELIMITER + quote(details));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static String quote(String value) {
+            if (value.indexOf(DELIMITER) < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    /**
+     * Arguments: [-threads N] [-readahead BYTES] [-queue FILES] [-output FILE] path...
+     * A path is a file, a directory or @FILE with a list of paths, one per line.
+     * The results are written to the output file or to the standard output.
+     */
+    public static void main(String[] args) throws Exception {
+        int threadsNum = Runtime.getRuntime().availableProcessors();
+        int readAhead = DEFAULT_READ_AHEAD;
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        String output = null;
+        List<Path> paths = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                threadsNum = Integer.parseInt(args[++i]);
+            } else if ("-readahead".equals(args[i]) && i + 1 < args.length) {
+                readAhead = Integer.parseInt(args[++i]);
+            } else if ("-queue".equals(args[i]) && i + 1 < args.length) {
+                queueCapacity = Integer.parseInt(args[++i]);
+            } else if ("-output".equals(args[i]) && i + 1 < args.length) {
+                output = args[++i];
+            } else if (args[i].startsWith("@")) {
+                for (String line : Files.readAllLines(Paths.get(args[i].substring(1)), Charset.defaultCharset())) {
+                    if (line.trim().length() > 0) {
+                        paths.add(Paths.get(line.trim()));
+                    }
+                }
+            } else {
+                paths.add(Paths.get(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new RuntimeException("You must pass at least one path: "
+                    + "[-threads N] [-readahead BYTES] [-queue FILES] [-output FILE] path...");
+        }
+
+        Writer writer = output == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"))
+                : Files.newBufferedWriter(Paths.get(output), Charset.forName("UTF-8"));
+        CsvListener listener = new CsvListener(writer);
+        long start = System.nanoTime();
+        try {
+            new BulkCharsetDetector(CharsetDetector.getCyrDetector(), threadsNum, readAhead, queueCapacity)
+                    .detect(paths, listener);
+        } finally {
+            writer.flush();
+            if (output != null) {
+                writer.close();
+            }
+        }
+        System.err.println("Detected: " + listener.getDetectedNum() + ", failed: " + listener.getFailedNum()
+                + ", " + (System.nanoTime() - start) / 1000000 + " ms with " + threadsNum + " threads");
+    }
+}
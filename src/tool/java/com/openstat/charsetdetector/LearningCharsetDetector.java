@@ -17,93 +17,305 @@ package com.openstat.charsetdetector;
 
 import static com.openstat.charsetdetector.CyrillicCharset.CHARS_NUM;
 import static com.openstat.charsetdetector.CyrillicCharsetDetector.*;
-import java.io.File;
-import java.io.FileInputStream;
+
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Learns the #DetectionModel from corpus files in known charsets.
+ *
+ * Files are split into chunks that are bulk-read and counted by a fixed number of threads,
+ * every thread into its own tables, and the tables are merged at the end. A chunk is read with
+ * the 3 bytes before it, so the windows that cross chunk boundaries are counted exactly once
+ * and the model does not depend on the chunk size or the number of threads.
+ */
 public final class LearningCharsetDetector {
 
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    /**
+     * Number of bytes before the current one in a window.
+     */
+    static final int OVERLAP = 3;
+
+    /**
+     * A corpus file and its charset.
+     */
+    public static final class Corpus {
+
+        private final Path path;
+        private final CyrillicCharset charset;
+
+        public Corpus(Path path, CyrillicCharset charset) {
+            this.path = path;
+            this.charset = charset;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public CyrillicCharset getCharset() {
+            return charset;
+        }
+    }
+
+    /**
+     * Part of a corpus file counted at once.
+     */
+    private static final class Chunk {
+
+        private final Corpus corpus;
+        private final long start;
+        private final int len;
+
+        Chunk(Corpus corpus, long start, int len) {
+            this.corpus = corpus;
+            this.start = start;
+            this.len = len;
+        }
+    }
+
+    /**
+     * Tables counted by one thread.
+     */
+    private static final class Stats {
+
+        private final BitSet boundaryTrigrams = new BitSet(CHARS_NUM * CHARS_NUM * CHARS_NUM * 2);
+        private final BitSet trigrams = new BitSet(CHARS_NUM * CHARS_NUM * CHARS_NUM);
+        private final long[] digramsFrequencies = new long[CHARS_NUM * CHARS_NUM];
+
+        void merge(Stats other) {
+            boundaryTrigrams.or(other.boundaryTrigrams);
+            trigrams.or(other.trigrams);
+            for (int i = 0; i < digramsFrequencies.length; i++) {
+                digramsFrequencies[i] += other.digramsFrequencies[i];
+            }
+        }
+    }
+
     private LearningCharsetDetector() {
     }
 
     public static void learnDetecting(String learnigSetPath, String outputDir, CyrillicCharset cs) {
-        BitSet boundaryTrigrams = new BitSet(CHARS_NUM * CHARS_NUM * CHARS_NUM * 2);
-        BitSet trigrams = new BitSet(CHARS_NUM * CHARS_NUM * CHARS_NUM);
-        int[] digramsFrequencies = new int[CHARS_NUM * CHARS_NUM];
-        File learningSet = new File(learnigSetPath);
-        if (!learningSet.exists() || !learningSet.isFile()) {
-            throw new RuntimeException(
-                    "No data file to learn to detect russian encoding!" + learningSet.getAbsolutePath());
+        DetectionModel model = learn(Collections.singletonList(new Corpus(Paths.get(learnigSetPath), cs)),
+                Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+        try {
+            serializeModel(model, outputDir);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Counts the boundary trigrams, trigrams and digram frequencies of all the corpus files.
+     * If the frequencies do not fit into the model, they are scaled down proportionally.
+     *
+     * @param corpora corpus files and their charsets
+     * @param threadsNum number of counting threads
+     * @param chunkSize number of bytes a thread reads and counts at once
+     * @return the model
+     */
+    public static DetectionModel learn(List<Corpus> corpora, int threadsNum, int chunkSize) {
+        if (threadsNum < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Wrong learning parameters: " + threadsNum + " threads, "
+                    + chunkSize + " bytes in a chunk");
+        }
+        final List<Chunk> chunks = split(corpora, chunkSize);
+        int maxLen = 0;
+        for (Chunk chunk : chunks) {
+            maxLen = Math.max(maxLen, chunk.len);
         }
+        final int bufferSize = OVERLAP + maxLen;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadsNum);
+        Stats stats = new Stats();
         try {
-            FileInputStream is = new FileInputStream(learningSet);
-            int curChar = 0;
-            int prevChar = 0;
-            int prevPrevChar = 0;
-            int prevPrevPrevChar = 0;
-            while (is.available() > 0) {
-                curChar = is.read();
-                int ind1 = cs.charToIndex((byte) prevPrevPrevChar);
-                int ind2 = cs.charToIndex((byte) prevPrevChar);
-                int ind3 = cs.charToIndex((byte) prevChar);
-                int ind4 = cs.charToIndex((byte) curChar);
-                if (ind1 >= 0 && ind2 >= 0) {
-                    digramsFrequencies[digramIndex(ind1, ind2)]++;
-                }
+            List<Future<Stats>> results = new ArrayList<Future<Stats>>();
+            for (int t = 0; t < threadsNum; t++) {
+                results.add(executor.submit(new Callable<Stats>() {
+                    @Override
+                    public Stats call() throws IOException {
+                        Stats threadStats = new Stats();
+                        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+                        int i;
+                        while ((i = nextChunk.getAndIncrement()) < chunks.size()) {
+                            count(chunks.get(i), buffer, threadStats);
+                        }
+                        return threadStats;
+                    }
+                }));
+            }
+            for (Future<Stats> result : results) {
+                stats.merge(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return new DetectionModel(stats.boundaryTrigrams, stats.trigrams, toModelFrequencies(stats.digramsFrequencies));
+    }
 
-                if (ind1 >= 0 && ind2 >= 0 && ind3 >= 0) {
-                    trigrams.set(trigramIndex(ind1, ind2, ind3));
-                }
+    private static List<Chunk> split(List<Corpus> corpora, int chunkSize) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (Corpus corpus : corpora) {
+            if (!Files.isRegularFile(corpus.getPath())) {
+                throw new RuntimeException("No data file to learn to detect russian encoding! "
+                        + corpus.getPath().toAbsolutePath());
+            }
+            long size;
+            try {
+                size = Files.size(corpus.getPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (long start = 0; start < size; start += chunkSize) {
+                chunks.add(new Chunk(corpus, start, (int) Math.min(chunkSize, size - start)));
+            }
+        }
+        return chunks;
+    }
 
-                if (ind1 < 0 && ind2 >= 0 && ind3 >= 0 && ind4 >= 0) {
-                    boundaryTrigrams.set(startBoundaryTrigramIndex(ind2, ind3, ind4));
+    /**
+     * Reads the chunk with the bytes before it and counts the windows that end in the chunk.
+     * The beginning of a file is preceded by zero bytes.
+     */
+    private static void count(Chunk chunk, ByteBuffer buffer, Stats stats) throws IOException {
+        int overlap = (int) Math.min(OVERLAP, chunk.start);
+        buffer.clear().limit(overlap + chunk.len);
+        FileChannel channel = FileChannel.open(chunk.corpus.getPath(), StandardOpenOption.READ);
+        try {
+            long position = chunk.start - overlap;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File " + chunk.corpus.getPath() + " is truncated while learning");
                 }
+                position += read;
+            }
+        } finally {
+            channel.close();
+        }
 
-                if (ind1 >= 0 && ind2 >= 0 && ind3 >= 0 && ind4 < 0) {
-                    boundaryTrigrams.set(endBoundaryTrigramIndex(ind1, ind2, ind3));
+        CyrillicCharset cs = chunk.corpus.getCharset();
+        byte[] b = buffer.array();
+        int zeroIndex = cs.charToIndex((byte) 0);
+        int ind1 = overlap < 3 ? zeroIndex : cs.charToIndex(b[overlap - 3]);
+        int ind2 = overlap < 2 ? zeroIndex : cs.charToIndex(b[overlap - 2]);
+        int ind3 = overlap < 1 ? zeroIndex : cs.charToIndex(b[overlap - 1]);
+        BitSet boundaryTrigrams = stats.boundaryTrigrams;
+        BitSet trigrams = stats.trigrams;
+        long[] digramsFrequencies = stats.digramsFrequencies;
+        int end = overlap + chunk.len;
+        for (int i = overlap; i < end; i++) {
+            int ind4 = cs.charToIndex(b[i]);
+            if (ind1 >= 0 && ind2 >= 0) {
+                digramsFrequencies[digramIndex(ind1, ind2)]++;
+                if (ind3 >= 0) {
+                    trigrams.set(trigramIndex(ind1, ind2, ind3));
+                    if (ind4 < 0) {
+                        boundaryTrigrams.set(endBoundaryTrigramIndex(ind1, ind2, ind3));
+                    }
                 }
-
-                prevPrevPrevChar = prevPrevChar;
-                prevPrevChar = prevChar;
-                prevChar = curChar;
+            } else if (ind1 < 0 && ind2 >= 0 && ind3 >= 0 && ind4 >= 0) {
+                boundaryTrigrams.set(startBoundaryTrigramIndex(ind2, ind3, ind4));
             }
+            ind1 = ind2;
+            ind2 = ind3;
+            ind3 = ind4;
+        }
+    }
 
-            is.close();
-            serializeStatsTables(boundaryTrigrams, trigrams, digramsFrequencies, outputDir);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * @return the frequencies scaled down to #DetectionModel.MAX_FREQUENCY if needed,
+     *         non-zero frequencies stay non-zero
+     */
+    static int[] toModelFrequencies(long[] frequencies) {
+        long max = 0;
+        for (long frequency : frequencies) {
+            max = Math.max(max, frequency);
+        }
+        double scale = Math.min(1, (double) DetectionModel.MAX_FREQUENCY / max);
+        int[] result = new int[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            if (frequencies[i] > 0) {
+                long scaled = Math.max(1, Math.round(frequencies[i] * scale));
+                result[i] = (int) Math.min(DetectionModel.MAX_FREQUENCY, scaled);
+            }
         }
+        return result;
     }
 
-    private static void serializeStatsTables(BitSet boundaryTrigrams, BitSet trigrams,
-            int[] frequencies, String outputDir)
-            throws IOException {
-        ObjectOutputStream boundaryTrigramsStream = new ObjectOutputStream(
-                new FileOutputStream(outputDir + "/wordThresholds.data"));
-        boundaryTrigramsStream.writeObject(boundaryTrigrams);
-        boundaryTrigramsStream.close();
-
-        ObjectOutputStream trigramsStream = new ObjectOutputStream(
-                new FileOutputStream(outputDir + "/triples.data"));
-        trigramsStream.writeObject(trigrams);
-        trigramsStream.close();
-
-        ObjectOutputStream frequenciesStream = new ObjectOutputStream(
-                new FileOutputStream(outputDir + "/frequencies.data"));
-        frequenciesStream.writeObject(frequencies);
-        frequenciesStream.close();
+    private static void serializeModel(DetectionModel model, String outputDir) throws IOException {
+        OutputStream modelStream = new FileOutputStream(outputDir + DetectionModel.DEFAULT_MODEL_RESOURCE);
+        try {
+            model.write(modelStream);
+        } finally {
+            modelStream.close();
+        }
     }
 
-    public static void main(String[] args) {
-        if (args.length != 3) {
-            throw new RuntimeException(
-                    "You must pass 3 arguments: path to learning set, output dir, learning set encoding.");
+    /**
+     * Arguments: [-threads N] [-chunk BYTES] followed by either
+     * "learning set, output dir, learning set encoding" or "output dir, ENCODING:learning set...".
+     */
+    public static void main(String[] args) throws IOException {
+        int threadsNum = Runtime.getRuntime().availableProcessors();
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        List<String> positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                threadsNum = Integer.parseInt(args[++i]);
+            } else if ("-chunk".equals(args[i]) && i + 1 < args.length) {
+                chunkSize = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
         }
-        learnDetecting(args[0], args[1], CyrillicCharset.valueOf(args[2]));
-        System.out.println("Learned!");
+
+        String outputDir;
+        List<Corpus> corpora = new ArrayList<Corpus>();
+        if (positional.size() == 3 && positional.get(2).indexOf(':') < 0) {
+            outputDir = positional.get(1);
+            corpora.add(new Corpus(Paths.get(positional.get(0)), CyrillicCharset.valueOf(positional.get(2))));
+        } else if (positional.size() >= 2) {
+            outputDir = positional.get(0);
+            for (String corpus : positional.subList(1, positional.size())) {
+                int colon = corpus.indexOf(':');
+                if (colon < 0) {
+                    throw new RuntimeException("Learning set must be passed as ENCODING:path, got " + corpus);
+                }
+                corpora.add(new Corpus(Paths.get(corpus.substring(colon + 1)),
+                        CyrillicCharset.valueOf(corpus.substring(0, colon))));
+            }
+        } else {
+            throw new RuntimeException("You must pass 3 arguments: path to learning set, output dir, "
+                    + "learning set encoding; or output dir and ENCODING:path of every learning set.");
+        }
+
+        long start = System.nanoTime();
+        serializeModel(learn(corpora, threadsNum, chunkSize), outputDir);
+        System.out.println("Learned in " + (System.nanoTime() - start) / 1000000 + " ms with "
+                + threadsNum + " threads!");
     }
 }
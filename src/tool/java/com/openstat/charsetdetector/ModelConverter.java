@@ -0,0 +1,77 @@
+/**
+ *    Copyright (c) 2011 Openstat
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.openstat.charsetdetector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+
+/**
+ * Converts a model saved with Java serialization (wordThresholds.data, triples.data and frequencies.data)
+ * or a model in version 1 of the binary format into the latest binary format of #DetectionModel,
+ * which stores the table of window scores, so a mapped model is scanned straight from the file.
+ */
+public final class ModelConverter {
+
+    private ModelConverter() {
+    }
+
+    public static DetectionModel readSerializedModel(String inputDir) throws IOException, ClassNotFoundException {
+        BitSet boundaryTrigrams = (BitSet) readObject(inputDir + "/wordThresholds.data");
+        BitSet trigrams = (BitSet) readObject(inputDir + "/triples.data");
+        int[] frequencies = (int[]) readObject(inputDir + "/frequencies.data");
+        return new DetectionModel(boundaryTrigrams, trigrams, frequencies);
+    }
+
+    public static DetectionModel readBinaryModel(String path) throws IOException {
+        InputStream is = new FileInputStream(path);
+        try {
+            return DetectionModel.read(is).withWindowScores();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Object readObject(String path) throws IOException, ClassNotFoundException {
+        ObjectInputStream stream = new ObjectInputStream(new FileInputStream(path));
+        try {
+            return stream.readObject();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new RuntimeException(
+                    "You must pass 2 arguments: dir with serialized model or binary model file, output model file.");
+        }
+        DetectionModel model = new File(args[0]).isDirectory()
+                ? readSerializedModel(args[0]) : readBinaryModel(args[0]);
+        OutputStream os = new FileOutputStream(args[1]);
+        try {
+            model.write(os);
+        } finally {
+            os.close();
+        }
+        System.out.println("Converted!");
+    }
+}